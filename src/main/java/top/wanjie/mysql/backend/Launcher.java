@@ -3,6 +3,8 @@ package top.wanjie.mysql.backend;
 import org.apache.commons.cli.*;
 import top.wanjie.mysql.backend.common.Error;
 import top.wanjie.mysql.backend.dm.DataManager;
+import top.wanjie.mysql.backend.dm.RecoveryTarget;
+import top.wanjie.mysql.backend.dm.page.PageImpl;
 import top.wanjie.mysql.backend.server.Server;
 import top.wanjie.mysql.backend.tbm.TableManager;
 import top.wanjie.mysql.backend.tm.TransactionManager;
@@ -24,39 +26,61 @@ public class Launcher {
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("mmap", false, "-mmap (memory-mapped .db file I/O; pages are still copied into the buffer pool, not zero-copy)");
+        options.addOption("pagesize", true, "-pagesize 8KB");
+        options.addOption("archive", true, "-archive ArchivePath");
+        options.addOption("recoverto", "recover-to", true, "-recover-to lsn:N|xid:N");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options,args);
 
+        if(cmd.hasOption("open") && cmd.hasOption("recover-to")) {
+            recoverDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")), cmd.getOptionValue("archive"),
+                    RecoveryTarget.parse(cmd.getOptionValue("recover-to")));
+            return;
+        }
+
         if(cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")), cmd.hasOption("mmap"), cmd.getOptionValue("archive"));
             return;
         }
 
         if(cmd.hasOption("create")) {
-            createDB(cmd.getOptionValue("create"));
+            createDB(cmd.getOptionValue("create"), parseMem(cmd.getOptionValue("mem")), parsePageSize(cmd.getOptionValue("pagesize")));
             return;
         }
 
         System.out.println("Usage: launcher (open|create) DBPath");
+        System.out.println("       launcher open BackupPath recover-to (lsn:N|xid:N) [archive ArchivePath,DBPath]");
     }
 
-    private static void createDB(String path) {
+    private static void createDB(String path, long mem, int pageSize) {
         TransactionManager tm = TransactionManager.create(path);
-        DataManager dm = DataManager.create(path, DEFALUT_MEM, tm);
+        DataManager dm = DataManager.create(path, mem, tm, pageSize);
         VersionManager vm = new VersionManagerImpl(tm, dm);
-        TableManager.create(path, vm, dm);
-        tm.close();
+        TableManager.create(path, vm, dm).close();
         dm.close();
+        tm.close();
     }
 
-    private static void openDB(String path, long mem) {
+    // 打开时带上 -archive，检查点之后不再需要的日志段移到归档中
+    private static void openDB(String path, long mem, boolean mmap, String archive) {
         TransactionManager tm = TransactionManager.open(path);
-        DataManager dm = DataManager.open(path, mem, tm);
+        DataManager dm = DataManager.open(path, mem, tm, mmap, archive);
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager tbm = TableManager.open(path, vm, dm);
         new Server(port, tbm).start();
     }
 
+    // 把在线备份恢复到 target：-archive 给出逗号分隔的若干来源，依次从中取备份之后的日志段，
+    // 通常是归档的名字和已经关闭的原数据库的路径；恢复完成后退出，之后照常 -open BackupPath
+    private static void recoverDB(String path, long mem, String archive, RecoveryTarget target) {
+        String[] sources = archive == null ? new String[0] : archive.split(",");
+        TransactionManager tm = TransactionManager.open(path);
+        DataManager dm = DataManager.recoverTo(path, mem, tm, target, sources);
+        dm.close();
+        tm.close();
+    }
+
     private static long parseMem(String memStr) {
         if(memStr == null || "".equals(memStr)) {
             return DEFALUT_MEM;
@@ -78,4 +102,24 @@ public class Launcher {
         }
         return DEFALUT_MEM;
     }
+
+    // 页面大小只在创建时指定，之后从 .db 文件的第一页读出
+    private static int parsePageSize(String sizeStr) {
+        if(sizeStr == null || "".equals(sizeStr)) {
+            return PageImpl.PAGE_SIZE;
+        }
+        if(sizeStr.length() < 3 || !sizeStr.endsWith("KB")) {
+            Panic.panic(Error.InvalidPageSizeException);
+        }
+        long size = 0;
+        try {
+            size = Long.parseLong(sizeStr.substring(0, sizeStr.length()-2))*KB;
+        } catch (NumberFormatException e) {
+            Panic.panic(Error.InvalidPageSizeException);
+        }
+        if(size > Integer.MAX_VALUE || !PageImpl.isValidPageSize((int)size)) {
+            Panic.panic(Error.InvalidPageSizeException);
+        }
+        return (int)size;
+    }
 }
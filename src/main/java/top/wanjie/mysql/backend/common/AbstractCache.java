@@ -1,112 +1,253 @@
 package top.wanjie.mysql.backend.common;
 
-import top.wanjie.mysql.backend.utils.Panic;
-
-import java.util.HashMap;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * AbstractCache 实现了一个引用计数策略的缓存
+ * get 即 pin，release 即 unpin。
+ * maxSize == 0 时为无界缓存，引用计数归零立即释放资源；
+ * maxSize > 0 时为有界缓冲池，引用计数归零的资源仍然驻留在缓存中，
+ * 缓存满时按 CLOCK 算法淘汰一个未被引用的冷资源，只有全部资源都被引用时才会抛出 CacheFullException
+ *
+ * 每个 key 对应一个 Holder，引用计数用原子变量维护，命中路径只有一次 ConcurrentHashMap 查找和一次 CAS，
+ * 不同 key 之间互不竞争；只有缓存满需要淘汰时才会进入 evictLock
+ * 同一个 key 只会由一个线程加载，其余线程在该 key 的 future 上等待，加载失败时异常会抛给所有等待者
+ * 有界缓存支持预读：claim 先为 key 放入一个未被引用的占位，fill 再填入加载好的资源，期间访问该 key 的线程同样在 future 上等待
  */
 public abstract class AbstractCache<T> {
-    private HashMap<Long,T> cache;
-    private HashMap<Long,Integer> references;
-    private HashMap<Long,Boolean> getting;
-    private Integer maxSize;
-    private Integer count;
-    private Lock lock;
+    private ConcurrentHashMap<Long, Holder<T>> cache;
+    private int maxSize;
+    private AtomicInteger count;
+    private Lock evictLock;
+    // CLOCK 指针，在 cache 的 value 上循环扫描，仅在持有 evictLock 时访问
+    private Iterator<Holder<T>> hand;
+
+    private static class Holder<T> {
+        final long key;
+        // 引用计数，EVICTED 表示该资源已被释放，不能再被引用
+        final AtomicInteger references = new AtomicInteger(1);
+        // 加载完成时完成，加载失败时以异常完成
+        final CompletableFuture<T> loading = new CompletableFuture<>();
+        // 从 cache 中移除后完成
+        final CompletableFuture<Void> removed = new CompletableFuture<>();
+        volatile T obj;
+        // CLOCK 访问位
+        volatile boolean referenced = true;
+
+        Holder(long key) {
+            this.key = key;
+        }
+    }
+
+    private static final int EVICTED = -1;
 
     public AbstractCache(int _maxSize){
-        maxSize       =_maxSize;
-        cache         = new HashMap<>();
-        references    = new HashMap<>();
-        getting       = new HashMap<>();
-        lock          = new ReentrantLock();
-        count         = 0;
+        maxSize       = _maxSize;
+        cache         = new ConcurrentHashMap<>();
+        count         = new AtomicInteger(0);
+        evictLock     = new ReentrantLock();
     }
 
-    protected T get(long key) {
+    protected T get(long key) throws Exception {
         while(true) {
-            lock.lock();
-            if(getting.containsKey(key)){
-                lock.unlock();
+            Holder<T> h = cache.get(key);
+            if(h != null) {
+                if(!pin(h)) {
+                    // 资源正在被释放，等它离开缓存后重新加载
+                    h.removed.get();
+                    continue;
+                }
+                h.referenced = true;
                 try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                    return h.loading.get();
+                } catch (ExecutionException e) {
+                    h.references.decrementAndGet();
+                    throw (Exception)e.getCause();
                 }
+            }
+
+            if(!reserve()) {
+                throw Error.CacheFullException;
+            }
+            Holder<T> nh = new Holder<>(key);
+            if(cache.putIfAbsent(key, nh) != null) {
+                count.decrementAndGet();
                 continue;
             }
 
-            if(cache.containsKey(key)) {
-                T obj = cache.get(key);
-                references.put(key, references.get(key) + 1);
-                lock.unlock();
-                return obj;
+            T obj = null;
+            try {
+                obj = getForCache(key);
+            } catch (Exception e) {
+                remove(nh);
+                nh.loading.completeExceptionally(e);
+                throw e;
             }
+            nh.obj = obj;
+            nh.loading.complete(obj);
+            return obj;
+        }
+    }
 
-            if(maxSize > 0 && count == maxSize) {
-                Panic.panic(Error.CacheFullException);
+    protected void release(long key) {
+        Holder<T> h = cache.get(key);
+        if(h.references.decrementAndGet() > 0) {
+            return;
+        }
+        if(maxSize > 0) {
+            // 有界缓存不立即释放，留待 CLOCK 淘汰
+            h.referenced = true;
+            return;
+        }
+        // 归零后若没有被其他线程重新引用，则由当前线程释放
+        if(h.references.compareAndSet(0, EVICTED)) {
+            releaseForCache(h.obj);
+            remove(h);
+        }
+    }
+
+    // 调用者持有的是唯一的引用时，把资源移出缓存并释放，返回 true，之后的 get 会重新加载；
+    // 否则只释放调用者的引用，返回 false
+    protected boolean releaseIfLast(long key) {
+        Holder<T> h = cache.get(key);
+        if(h.references.compareAndSet(1, EVICTED)) {
+            releaseForCache(h.obj);
+            remove(h);
+            return true;
+        }
+        release(key);
+        return false;
+    }
+
+    private void remove(Holder<T> h) {
+        cache.remove(h.key, h);
+        count.decrementAndGet();
+        h.removed.complete(null);
+    }
+
+    private boolean pin(Holder<T> h) {
+        while(true) {
+            int refs = h.references.get();
+            if(refs == EVICTED) {
+                return false;
+            }
+            if(h.references.compareAndSet(refs, refs + 1)) {
+                return true;
             }
+        }
+    }
 
-            getting.put(key,true);
-            lock.unlock();
-            break;
+    // 为即将加载的资源占一个位置，缓存已满时先淘汰
+    private boolean reserve() {
+        if(maxSize <= 0) {
+            count.incrementAndGet();
+            return true;
         }
+        while(true) {
+            int c = count.get();
+            if(c < maxSize) {
+                if(count.compareAndSet(c, c + 1)) {
+                    return true;
+                }
+                continue;
+            }
+            if(!evict()) {
+                return false;
+            }
+        }
+    }
 
-        T obj = null;
+    // CLOCK 淘汰：指针扫过的资源若仍被引用则跳过，若访问位为真则清零给第二次机会，否则淘汰
+    // 最多扫描两圈；资源先写回再从 map 中移除，保证其他线程重新加载时读到的是最新数据
+    private boolean evict() {
+        evictLock.lock();
         try {
-            obj = getForCache(key);
-        } catch (Exception e) {
-            lock.lock();
-            getting.remove(key);
-            lock.unlock();
-            Panic.panic(e);
+            for(int i = 0; i < 2 * maxSize; i++) {
+                if(hand == null || !hand.hasNext()) {
+                    hand = cache.values().iterator();
+                    if(!hand.hasNext()) {
+                        return false;
+                    }
+                }
+                Holder<T> h = hand.next();
+                if(h.references.get() != 0 || !h.loading.isDone()) {
+                    continue;
+                }
+                if(h.referenced) {
+                    h.referenced = false;
+                    continue;
+                }
+                if(!h.references.compareAndSet(0, EVICTED)) {
+                    continue;
+                }
+                releaseForCache(h.obj);
+                remove(h);
+                return true;
+            }
+            return false;
+        } finally {
+            evictLock.unlock();
         }
+    }
 
-        lock.lock();
-        getting.remove(key);
-        cache.put(key,obj);
-        references.put(key,1);
-        count++;
-        lock.unlock();
+    // 为预读占位：key 不在缓存中且能腾出位置时放入一个未被引用、尚未加载的占位，返回 true
+    // 占位在 fill 之前不会被淘汰，调用者必须随后调用 fill
+    protected boolean claim(long key) {
+        if(maxSize <= 0 || cache.containsKey(key)) {
+            return false;
+        }
+        if(!reserve()) {
+            return false;
+        }
+        Holder<T> h = new Holder<>(key);
+        // 预读的资源很快就会被访问，访问位与刚访问过的资源一样置位，避免还没用到就被淘汰
+        h.references.set(0);
+        if(cache.putIfAbsent(key, h) != null) {
+            count.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
 
-        return obj;
+    protected void fill(long key, T obj) {
+        Holder<T> h = cache.get(key);
+        h.obj = obj;
+        h.loading.complete(obj);
     }
 
-    protected void release(long key) {
-        lock.lock();
-        try {
-            Integer refCount = references.get(key);
-            refCount--;
-            if(refCount == 0) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                cache.remove(key);
-                references.remove(key);
-                count--;
-            }else{
-                references.put(key,refCount);
+    // 当前驻留在缓存中、已加载完成的资源快照
+    protected List<T> cached() {
+        List<T> list = new ArrayList<>();
+        for (Holder<T> h : cache.values()) {
+            if(h.loading.isDone() && !h.loading.isCompletedExceptionally()) {
+                list.add(h.obj);
             }
-        }finally {
-            lock.unlock();
         }
+        return list;
     }
 
     protected void close() {
-        lock.lock();
-        Set<Long> keys = cache.keySet();
-        for (Long key : keys) {
-            T obj = cache.get(key);
-            releaseForCache(obj);
-            cache.remove(key);
-            references.remove(key);
+        evictLock.lock();
+        try {
+            for (Holder<T> h : cache.values()) {
+                if(h.loading.isDone() && !h.loading.isCompletedExceptionally()) {
+                    releaseForCache(h.obj);
+                }
+            }
+            cache.clear();
+            count.set(0);
+            hand = null;
+        } finally {
+            evictLock.unlock();
         }
-
     }
 
     protected abstract T getForCache(long key) throws Exception;
@@ -115,4 +256,4 @@ public abstract class AbstractCache<T> {
 
 
 
- }
\ No newline at end of file
+ }
@@ -9,9 +9,16 @@ public class Error {
 
     // dm
     public static final Exception BadLogFileException = new RuntimeException("Bad log file!");
+    public static final Exception LegacyLogException = new RuntimeException("Legacy log file is read only!");
+    public static final Exception LogTruncatedException = new RuntimeException("Log has been truncated!");
     public static final Exception MemTooSmallException = new RuntimeException("Memory too small!");
     public static final Exception DataTooLargeException = new RuntimeException("Data too large!");
     public static final Exception DatabaseBusyException = new RuntimeException("Database is busy!");
+    public static final Exception BadDBFileException = new RuntimeException("Bad db file!");
+    public static final Exception NullDataItemException = new RuntimeException("Null data item!");
+    public static final Exception NotBackupException = new RuntimeException("Not a backup!");
+    public static final Exception RecoveryTargetNotFoundException = new RuntimeException("Recovery target not found!");
+    public static final Exception RecoveryTargetTooEarlyException = new RuntimeException("Recovery target is before the end of backup!");
 
     // tm
     public static final Exception BadXIDFileException = new RuntimeException("Bad XID file!");
@@ -43,4 +50,6 @@ public class Error {
 
     // launcher
     public static final Exception InvalidMemException = new RuntimeException("Invalid memory!");
+    public static final Exception InvalidPageSizeException = new RuntimeException("Invalid page size!");
+    public static final Exception InvalidRecoveryTargetException = new RuntimeException("Invalid recovery target!");
 }
@@ -0,0 +1,27 @@
+package top.wanjie.mysql.backend.dm;
+
+/**
+ * @Author fraven
+ * @Description 订阅者看到的一条改动，按日志顺序到达。
+ * INSERT 和 UPDATE 到达时事务还没有结束，订阅者需要按 xid 暂存，等到同一事务的 COMMIT 或 ABORT 再决定是否应用；
+ * xid 为 SUPER_XID 的 UPDATE 是回收空间时对页面结构的改写，总是生效
+ * @Date 2023/05/18/21:40
+ */
+public class ChangeEvent {
+    public static final byte INSERT = 0;
+    public static final byte UPDATE = 1;
+    public static final byte COMMIT = 2;
+    public static final byte ABORT = 3;
+
+    public byte type;
+    // 这条改动所在日志的 LSN
+    public long lsn;
+    public long xid;
+    // INSERT 和 UPDATE 改动的 DataItem
+    public long uid;
+    // INSERT 写入的整个 DataItem，[ValidFlag] [DataSize] [Data]
+    public byte[] raw;
+    // UPDATE 改写的各段，offsets 是每段相对 DataItem 起点的偏移，newRaws 是改写后的内容
+    public int[] offsets;
+    public byte[][] newRaws;
+}
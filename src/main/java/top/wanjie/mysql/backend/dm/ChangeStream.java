@@ -0,0 +1,42 @@
+package top.wanjie.mysql.backend.dm;
+
+import top.wanjie.mysql.backend.dm.logger.LogTailer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @Author fraven
+ * @Description 跟随日志读取已落盘的改动，供只读副本和变更数据捕获使用，只能由一个线程使用
+ * @Date 2023/05/18/21:40
+ */
+public class ChangeStream {
+    private LogTailer tailer;
+
+    ChangeStream(LogTailer tailer) {
+        this.tailer = tailer;
+    }
+
+    // 下一条改动，没有时最多等待 timeout 毫秒，超时或数据库已关闭时返回 null；检查点等不涉及数据的日志被跳过
+    public ChangeEvent next(long timeout) throws Exception {
+        long deadline = System.currentTimeMillis() + timeout;
+        while(true) {
+            ByteBuffer log = tailer.next(Math.max(0, deadline - System.currentTimeMillis()));
+            if(log == null) {
+                return null;
+            }
+            ChangeEvent ce = Recover.parseChange(log, tailer.lsn());
+            if(ce != null) {
+                return ce;
+            }
+        }
+    }
+
+    // 下一条改动从这里开始，断开之后用它重新订阅可以接着读
+    public long position() {
+        return tailer.position();
+    }
+
+    public void close() {
+        tailer.close();
+    }
+}
@@ -1,10 +1,13 @@
 package top.wanjie.mysql.backend.dm;
 
+import top.wanjie.mysql.backend.common.Error;
 import top.wanjie.mysql.backend.dm.dataItem.DataItem;
 import top.wanjie.mysql.backend.dm.logger.Logger;
+import top.wanjie.mysql.backend.dm.page.PageImpl;
 import top.wanjie.mysql.backend.dm.page.PageOne;
 import top.wanjie.mysql.backend.dm.pageCache.PageCache;
 import top.wanjie.mysql.backend.tm.TransactionManager;
+import top.wanjie.mysql.backend.utils.Panic;
 
 /**
  * @Author fraven
@@ -13,28 +16,88 @@ import top.wanjie.mysql.backend.tm.TransactionManager;
  */
 public interface DataManager {
     DataItem read(long uid) throws Exception;
+    // 调用者不能持有任何页面的锁（DataItem 的 before 到 after 之间），插入可能要等待页面的独占锁
     long insert(long xid, byte[] data) throws Exception;
+    // 回收一个已经不会再被访问的 DataItem，调用者的引用随之释放；还有其他引用时不回收，返回 false
+    boolean free(DataItem di) throws Exception;
+    // 结束事务：写过日志的事务先写 commitLog 或 abortLog，再改写 TM 中的状态
+    void commit(long xid);
+    void abort(long xid);
+    // 从 lsn 开始订阅已落盘的改动，lsn 取自 nextLsn 或者 ChangeStream 的 position
+    ChangeStream subscribe(long lsn);
+    long nextLsn();
+    // 在线备份到 path，备份期间读写照常进行；用 open 打开备份时恢复到备份结束时的一致状态
+    void backup(String path) throws Exception;
+    int getPageSize();
     void close();
 
     public static DataManager create(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.create(path, mem);
+        return create(path, mem, tm, PageImpl.PAGE_SIZE);
+    }
+
+    // 页面大小在创建时选定，保存在第一页中，之后打开时从第一页读出
+    public static DataManager create(String path, long mem, TransactionManager tm, int pageSize) {
+        PageCache pc = PageCache.create(path, mem, pageSize);
         Logger lg = Logger.create(path);
 
         DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
         dm.initPageOne();
+        dm.startCheckpointer();
         return dm;
     }
 
     public static DataManager open(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.open(path, mem);
+        return open(path, mem, tm, false);
+    }
+
+    // mmap 为 true 时页面缓存使用内存映射读写 .db 文件，页面仍然拷贝进缓冲池，不是零拷贝
+    public static DataManager open(String path, long mem, TransactionManager tm, boolean mmap) {
+        return open(path, mem, tm, mmap, null, null);
+    }
+
+    // archive 不为 null 时，检查点不再删除不需要的日志段，而是移到 archive 名下，留给时间点恢复
+    public static DataManager open(String path, long mem, TransactionManager tm, boolean mmap, String archive) {
+        return open(path, mem, tm, mmap, archive, null);
+    }
+
+    // 时间点恢复：path 必须是在线备份，先从 sources 依次找出备份之后的日志段接上，再回放到 target 为止，
+    // 之后的日志全部丢弃；sources 可以是归档的名字，也可以是已经关闭的原数据库的路径
+    public static DataManager recoverTo(String path, long mem, TransactionManager tm, RecoveryTarget target, String... sources) {
+        Logger.fetch(path, sources);
+        return open(path, mem, tm, false, null, target);
+    }
+
+    private static DataManager open(String path, long mem, TransactionManager tm, boolean mmap, String archive, RecoveryTarget target) {
+        byte[] header = PageCache.readHeader(path);
+        PageCache pc = PageCache.open(path, mem, PageOne.parsePageSize(header), PageOne.hasPageLsn(header), mmap);
         Logger lg = Logger.open(path);
         DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
-        if(!dm.loadCheckPageOne()) {
-            Recover.recover(tm, lg, pc);
+        boolean vc = dm.loadCheckPageOne();
+        boolean backup = PageOne.isBackup(dm.pageOne);
+        if(target != null && !backup) {
+            Panic.panic(Error.NotBackupException);
+        }
+        if(!vc || backup) {
+            Recover.recover(tm, lg, pc, backup ? PageOne.backupEnd(dm.pageOne) : -1, target);
+        }
+        if(backup) {
+            PageOne.clearBackup(dm.pageOne);
         }
         dm.fillPageIndex();
         PageOne.setVcOpen(dm.pageOne);
         dm.pc.flushPage(dm.pageOne);
+        // 旧格式的日志在恢复完成、页面全部落盘之后换成新格式
+        if(lg.isLegacy()) {
+            dm.pc.flushAll();
+            tm.sync();
+            dm.logger = Logger.upgrade(lg, path);
+        }
+        if(archive != null) {
+            dm.logger.archive(archive);
+        }
+        // 恢复的结果还在缓存中，立即做一次检查点，下次恢复不必再从头开始
+        dm.checkpoint();
+        dm.startCheckpointer();
 
         return dm;
     }
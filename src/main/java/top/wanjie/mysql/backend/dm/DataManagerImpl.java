@@ -5,61 +5,252 @@ import top.wanjie.mysql.backend.common.AbstractCache;
 import top.wanjie.mysql.backend.common.Error;
 import top.wanjie.mysql.backend.dm.dataItem.DataItem;
 import top.wanjie.mysql.backend.dm.dataItem.DataItemImpl;
+import top.wanjie.mysql.backend.dm.logger.LogRecord;
 import top.wanjie.mysql.backend.dm.logger.Logger;
 import top.wanjie.mysql.backend.dm.page.Page;
 import top.wanjie.mysql.backend.dm.page.PageOne;
 import top.wanjie.mysql.backend.dm.page.PageX;
 import top.wanjie.mysql.backend.dm.pageCache.PageCache;
+import top.wanjie.mysql.backend.dm.pageCache.PageCacheImpl;
 import top.wanjie.mysql.backend.dm.pageIndex.PageIndex;
 import top.wanjie.mysql.backend.dm.pageIndex.PageInfo;
 import top.wanjie.mysql.backend.tm.TransactionManager;
+import top.wanjie.mysql.backend.tm.TransactionManagerImpl;
+import top.wanjie.mysql.backend.utils.Panic;
 import top.wanjie.mysql.backend.utils.Types;
 
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 /**
  * @Author fraven
  * @Description
  * @Date 2023/04/04/12:34
  */
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager{
+    // 检查点间隔，毫秒
+    private static final long CHECKPOINT_INTERVAL = 30 * 1000;
     TransactionManager tm;
     PageCache pc;
     Logger logger;
     PageIndex pIndex;
     Page pageOne;
+    // 事务写下第一条日志之前的日志末尾，作为该事务第一条日志 LSN 的下界，检查点据此计算 UndoLSN
+    private Map<Long, Long> firstLsn;
+    private Thread checkpointer;
+    // 备份期间持有，后台检查点跳过，检查点需要的日志段不会被删除
+    private Lock checkpointLock;
+    // 提交和回滚持有读锁写日志并改写 TM，备份持有写锁确定日志终点并复制事务状态，两者一致
+    private ReadWriteLock outcomeLock;
+    private CountDownLatch closing;
 
     public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
         super(0);
         this.pc = pc;
         this.logger = logger;
         this.tm = tm;
-        this.pIndex = new PageIndex();
+        this.pIndex = new PageIndex(pc.getPageSize());
+        this.firstLsn = new ConcurrentHashMap<>();
+        this.closing = new CountDownLatch(1);
+        this.checkpointLock = new ReentrantLock();
+        this.outcomeLock = new ReentrantReadWriteLock();
     }
 
 
     void initPageOne() {
-        int pgno = pc.newPage(PageOne.initRaw());
+        int pgno = pc.newPage(PageOne.initRaw(pc.getPageSize()));
         assert pgno == 1;
-        pageOne = pc.getPage(pgno);
+        try {
+            pageOne = pc.getPage(pgno);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
     }
 
     boolean loadCheckPageOne() {
-        pageOne = pc.getPage(1);
+        try {
+            pageOne = pc.getPage(1);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
         return PageOne.checkVc(pageOne);
     }
 
     void fillPageIndex() {
         int pageNumber = pc.getPageNumber();
+        pc.prefetch(2, pageNumber - 1);
         for(int i = 2;i <= pageNumber;i++) {
-            Page page = pc.getPage(i);
+            Page page = null;
+            try {
+                page = pc.getPage(i);
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+            if(!PageX.isInitialized(page)) {
+                PageX.init(page);
+            }
             pIndex.add(i, PageX.getFreeSpage(page));
             page.release();
         }
     }
 
+    // 恢复完成后才能启动检查点线程
+    void startCheckpointer() {
+        checkpointer = new Thread(this::checkpointLoop, "checkpointer");
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+    }
+
+    void stopCheckpointer() {
+        closing.countDown();
+        if(checkpointer != null) {
+            try {
+                checkpointer.join();
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    private void checkpointLoop() {
+        try {
+            while(!closing.await(CHECKPOINT_INTERVAL, TimeUnit.MILLISECONDS)) {
+                if(checkpointLock.tryLock()) {
+                    try {
+                        checkpoint();
+                    } finally {
+                        checkpointLock.unlock();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 先取日志末尾作为 RedoLSN，再把所有脏页刷盘，此时 RedoLSN 之前的修改都已落盘；
+    // UndoLSN 取仍活跃事务中最早的一条日志，已结束的事务顺便从 firstLsn 中清除
+    // 检查点落盘后，UndoLSN 所在段之前的日志段不再需要，恢复从剩下的最早一段开始；返回恢复需要的最早的 LSN
+    // TM 的状态不随提交落盘，写检查点之前先落盘，之前的 commitLog 和 abortLog 被删除后状态不会丢失
+    // 修改页面的各处都在写日志之前、持有页面锁时置脏，LSN 小于 RedoLSN 的修改所在的页面此时一定是脏的，
+    // 修改还没完成时 flushAll 要等页面锁，写回的是修改之后的内容
+    long checkpoint() {
+        long redoLsn = logger.nextLsn();
+        int pageNumber = pc.getPageNumber();
+        pc.flushAll();
+        long undoLsn = redoLsn;
+        Iterator<Map.Entry<Long, Long>> it = firstLsn.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<Long, Long> entry = it.next();
+            if(!tm.isActive(entry.getKey())) {
+                it.remove();
+            } else if(entry.getValue() < undoLsn) {
+                undoLsn = entry.getValue();
+            }
+        }
+        tm.sync();
+        logger.log(Recover.checkpointLog(redoLsn, undoLsn, pageNumber));
+        logger.truncateBefore(undoLsn);
+        return Math.min(redoLsn, undoLsn);
+    }
+
+    // 必须在写日志之前登记，否则检查点可能在日志写入和登记之间漏掉这个事务
+    private void registerXid(long xid) {
+        if(xid != TransactionManagerImpl.SUPER_XID && !firstLsn.containsKey(xid)) {
+            firstLsn.putIfAbsent(xid, logger.nextLsn());
+        }
+    }
+
     // 修改数据时下日志
     public void logDataItem(long xid, DataItem di) {
-        byte[] log = Recover.wrapUpdateLog(xid, di);
-        logger.log(log);
+        registerXid(xid);
+        PageX.setLsn(di.page(), logger.log(Recover.updateLog(xid, di)));
+    }
+
+    // commitLog 落盘即提交，之后 TM 中的状态才改为提交，检查点在此之前不会把事务从 firstLsn 中清除；
+    // TM 的状态不单独落盘，由检查点统一落盘之后 commitLog 所在的段才会被删除
+    @Override
+    public void commit(long xid) {
+        outcomeLock.readLock().lock();
+        try {
+            if(firstLsn.containsKey(xid)) {
+                logger.log(Recover.commitLog(xid));
+            }
+            tm.commit(xid);
+        } finally {
+            outcomeLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void abort(long xid) {
+        outcomeLock.readLock().lock();
+        try {
+            if(firstLsn.containsKey(xid)) {
+                logger.log(Recover.abortLog(xid));
+            }
+            tm.abort(xid);
+        } finally {
+            outcomeLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ChangeStream subscribe(long lsn) {
+        return new ChangeStream(logger.tail(lsn));
+    }
+
+    @Override
+    public long nextLsn() {
+        return logger.nextLsn();
+    }
+
+    // 先做一个检查点，再模糊复制页面文件，然后在提交和回滚暂停的瞬间确定日志终点并复制事务状态，
+    // 最后复制从检查点需要的最早日志到终点的日志：副本中的页面都不早于检查点，日志覆盖了复制期间页面上的全部修改；
+    // 终点之前写下 commitLog 的事务在副本中都是提交状态，之后的都不是，日志中出现的事务都已分配了 XID
+    @Override
+    public void backup(String path) throws Exception {
+        if(new File(path + PageCacheImpl.DB_SUFFIX).exists() || new File(path + TransactionManagerImpl.XID_SUFFIX).exists()) {
+            throw Error.FileExistsException;
+        }
+        checkpointLock.lock();
+        try {
+            long start = checkpoint();
+            pc.backup(path);
+            long end;
+            outcomeLock.writeLock().lock();
+            try {
+                end = logger.nextLsn();
+                tm.backup(path);
+            } finally {
+                outcomeLock.writeLock().unlock();
+            }
+            byte[] raw;
+            pageOne.rLock();
+            try {
+                raw = Arrays.copyOf(pageOne.getData(), pageOne.getData().length);
+            } finally {
+                pageOne.rUnLock();
+            }
+            PageOne.markBackup(raw, end);
+            try (RandomAccessFile f = new RandomAccessFile(path + PageCacheImpl.DB_SUFFIX, "rw")) {
+                f.write(raw);
+                f.getFD().sync();
+            }
+            logger.backup(path, start, end);
+        } finally {
+            checkpointLock.unlock();
+        }
     }
 
     public void releaseDataItem(DataItem di) {
@@ -69,7 +260,15 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     @Override
     public DataItem read(long uid) throws Exception {
-        DataItemImpl di = (DataItemImpl)super.get(uid);
+        DataItemImpl di;
+        try {
+            di = (DataItemImpl)super.get(uid);
+        } catch (Exception e) {
+            if(e == Error.NullDataItemException) {
+                return null;
+            }
+            throw e;
+        }
         if(!di.isValid()) {
             di.release();
             return null;
@@ -83,49 +282,165 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     @Override
     public long insert(long xid, byte[] data) throws Exception {
         byte[] raw = DataItem.wrapDataItemRaw(data);
-        if(raw.length > PageX.MAX_FREE_SPACE) {
+        int maxFreeSpace = PageX.maxFreeSpace(pc.getPageSize(), pc.hasPageLsn());
+        if(raw.length > maxFreeSpace) {
             throw Error.DataTooLargeException;
         }
 
-        PageInfo pi = null;
         for(int i = 0;i < 5;i++) {
-            pi = pIndex.select(raw.length);
-            if(pi != null) {
-                break;
-            }else {
-                int pgno = pc.newPage(PageX.initRaw());
-                pIndex.add(pgno, PageX.MAX_FREE_SPACE);
-            }
-        }
-        if(pi == null) {
-            throw Error.DatabaseBusyException;
-        }
-        Page pg = pc.getPage(pi.pgno);
-        byte[] log = Recover.wrapInsertLog(xid, pg, raw);
-        logger.log(log);
-        short offset = PageX.insert(pg, raw);
-        pg.release();
-        pIndex.add(pg.getPageNumber(), PageX.getFreeSpage(pg));
+            PageInfo pi = pIndex.select(raw.length);
+            if(pi == null) {
+                int pgno = pc.newPage(PageX.initRaw(pc.getPageSize(), pc.hasPageLsn()));
+                pIndex.add(pgno, maxFreeSpace);
+                continue;
+            }
+            // 回收空间之后登记的空闲大小可能偏大，放不下时按实际大小放回去重新挑选
+            long uid = insertIntoPage(xid, pi.pgno, raw);
+            if(uid != 0) {
+                return uid;
+            }
+        }
+        throw Error.DatabaseBusyException;
+    }
+
+    // 优先复用空洞，否则追加到 FSO 处，放不下时返回 0
+    // 追加只在 FSO 之后写入，持有页面共享锁即可；复用空洞会改变页面中 DataItem 的排列，
+    // 需要持有独占锁，与回收空间和 getForCache 中的 isItem 互斥。
+    // 等待独占锁时调用者不能持有任何页面的锁，否则两个线程可以各持一页的共享锁互相等待
+    private long insertIntoPage(long xid, int pgno, byte[] raw) throws Exception {
+        Page pg = pc.getPage(pgno);
+        long uid = 0;
+        int freeSpace;
+        try {
+            pg.rLock();
+            boolean hasHole;
+            try {
+                hasHole = PageX.findHole(pg, raw.length) != null;
+                if(!hasHole && PageX.canAppend(pg, raw.length)) {
+                    uid = append(xid, pg, raw);
+                }
+                freeSpace = PageX.getFreeSpage(pg);
+            } finally {
+                pg.rUnLock();
+            }
+            if(hasHole) {
+                pg.lock();
+                try {
+                    PageX.Hole hole = PageX.findHole(pg, raw.length);
+                    if(hole != null) {
+                        uid = insertIntoHole(xid, pg, hole, raw);
+                    } else if(PageX.canAppend(pg, raw.length)) {
+                        uid = append(xid, pg, raw);
+                    }
+                    freeSpace = PageX.getFreeSpage(pg);
+                } finally {
+                    pg.unlock();
+                }
+            }
+        } finally {
+            pg.release();
+        }
+        pIndex.add(pgno, freeSpace);
+        return uid;
+    }
+
+    // 调用者持有页面锁，共享锁即可；写日志之前先置脏，见 checkpoint
+    private long append(long xid, Page pg, byte[] raw) {
+        LogRecord log = Recover.insertLog(xid, pg.getPageNumber(), PageX.getFSO(pg), raw);
+        registerXid(xid);
+        pg.setDirty(true);
+        long lsn = logger.log(log);
+        int offset = PageX.insert(pg, raw);
+        PageX.setLsn(pg, lsn);
         return Types.addressToUid(pg.getPageNumber(), offset);
     }
 
-    // 关闭DataItem缓存，日志，设置第一页字节校验，关闭页面缓存
+    // 剩余空洞的头部是页面结构的改写，用 SUPER_XID 单独记录，恢复时总是重做；
+    // 新 DataItem 记在事务名下，事务回滚时只把它置为无效，不会覆盖后来在剩余空洞中插入的数据
+    private long insertIntoHole(long xid, Page pg, PageX.Hole hole, byte[] raw) {
+        int pgno = pg.getPageNumber();
+        if(hole.rest != null) {
+            writePatch(pg, hole.rest);
+        }
+        DataItem.setGeneration(raw, hole.gen);
+        LogRecord log = Recover.insertLog(xid, pgno, hole.offset, raw);
+        registerXid(xid);
+        pg.setDirty(true);
+        long lsn = logger.log(log);
+        PageX.write(pg, hole.offset, raw);
+        PageX.setLsn(pg, lsn);
+        return Types.addressToUid(pgno, hole.offset, hole.gen);
+    }
+
+    private void writePatch(Page pg, PageX.Patch patch) {
+        byte[] old = Arrays.copyOfRange(pg.getData(), patch.offset, patch.offset + patch.raw.length);
+        long uid = Types.addressToUid(pg.getPageNumber(), patch.offset);
+        pg.setDirty(true);
+        long lsn = logger.log(Recover.updateLog(TransactionManagerImpl.SUPER_XID, uid, old, patch.raw));
+        PageX.write(pg, patch.offset, patch.raw);
+        PageX.setLsn(pg, lsn);
+    }
+
+    // 持有页面独占锁检查引用，检查通过之后新的读取要等到空洞写好才能在 isItem 中走到这里，
+    // 只会读到已回收的空洞；检查之前已经拿到 DataItem 的读取会使引用计数大于一，此时放弃回收
+    @Override
+    public boolean free(DataItem di) throws Exception {
+        long uid = di.getUid();
+        int pgno = Types.uidToPgno(uid);
+        Page pg = pc.getPage(pgno);
+        int freeSpace;
+        try {
+            pg.lock();
+            try {
+                if(!super.releaseIfLast(uid)) {
+                    return false;
+                }
+                writePatch(pg, PageX.free(pg, Types.uidToOffset(uid)));
+                freeSpace = PageX.getFreeSpage(pg);
+            } finally {
+                pg.unlock();
+            }
+        } finally {
+            pg.release();
+        }
+        pIndex.update(pgno, freeSpace);
+        return true;
+    }
+
+    @Override
+    public int getPageSize() {
+        return pc.getPageSize();
+    }
+
+    // 停止检查点线程，关闭DataItem缓存，日志，设置第一页字节校验，关闭页面缓存
+    // commit 和 abort 不把 TM 落盘，正常关闭的标记写下之前先落盘，否则下次打开跳过恢复时会丢失提交状态
     @Override
     public void close() {
+        stopCheckpointer();
         super.close();
         logger.close();
+        tm.sync();
         PageOne.setVcClose(pageOne);
         pageOne.release();
         pc.close();
     }
 
+    // 回收和复用空间之后，过期的 uid 可能指向另一个 DataItem 的中间，先确认它是一个 DataItem 的起点
     @Override
     protected DataItem getForCache(long uid) throws Exception {
-        short offset = (short)(uid & ((1L << 16) - 1));
-        uid >>>= 32;
-        int pgno = (int)(uid & ((1L << 32) - 1));
-        Page pg = pc.getPage(pgno);
-        return DataItem.parseDataItem(pg, offset, this);
+        Page pg = pc.getPage(Types.uidToPgno(uid));
+        boolean isItem;
+        pg.rLock();
+        try {
+            isItem = PageX.isItem(pg, Types.uidToOffset(uid));
+        } finally {
+            pg.rUnLock();
+        }
+        if(!isItem) {
+            pg.release();
+            throw Error.NullDataItemException;
+        }
+        return DataItem.parseDataItem(pg, uid, this);
     }
 
     @Override
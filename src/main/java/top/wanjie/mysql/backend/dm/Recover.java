@@ -1,16 +1,22 @@
 package top.wanjie.mysql.backend.dm;
 
-import com.google.common.primitives.Bytes;
+import top.wanjie.mysql.backend.common.Error;
 import top.wanjie.mysql.backend.common.SubArray;
 import top.wanjie.mysql.backend.dm.dataItem.DataItem;
+import top.wanjie.mysql.backend.dm.logger.LogRecord;
 import top.wanjie.mysql.backend.dm.logger.Logger;
 import top.wanjie.mysql.backend.dm.page.Page;
 import top.wanjie.mysql.backend.dm.page.PageX;
 import top.wanjie.mysql.backend.dm.pageCache.PageCache;
 import top.wanjie.mysql.backend.tm.TransactionManager;
-import top.wanjie.mysql.backend.utils.Parser;
+import top.wanjie.mysql.backend.tm.TransactionManagerImpl;
+import top.wanjie.mysql.backend.utils.Panic;
+import top.wanjie.mysql.backend.utils.Types;
 
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * @Author fraven
@@ -20,13 +26,37 @@ import java.util.*;
 // 在每条log（[Size] [Checksum] [Data]）的Data中
 // updateLog:
 // [LogType] [XID] [UID] [OldRaw] [NewRaw]
-// 0         1     9
+// 0         1     9     17
+// deltaLog:
+// [LogType] [XID] [UID] [Offset] [Length] [OldRaw] [NewRaw] [Offset] [Length] [OldRaw] [NewRaw] ...
+// 0         1     9     17       19       21
+// deltaLog 只记录 DataItem 中改变了的若干段，Offset 是每段在 DataItem 中的偏移；新写的更新日志都是 deltaLog，
+// updateLog 只在回放旧日志时出现
 // insertLog:
 // [LogType] [XID] [Pgno] [Offset] [Raw]
 // 0         1     9      13       15
+// checkpointLog:
+// [LogType] [RedoLSN] [UndoLSN] [PageNumber]
+// 0         1         9         17
+// commitLog / abortLog:
+// [LogType] [XID]
+// 0         1
+// 写过日志的事务结束时先写 commitLog 或 abortLog，再改写 TM 中的状态，commitLog 落盘即视为提交，TM 的状态到检查点才落盘；
+// 恢复时 TM 中仍活跃但有 commitLog 或 abortLog 的事务补上状态，回滚的事务补写 abortLog，订阅者总能看到每个事务的结局
+// 恢复在线备份时：页面是模糊复制的，可能写了一半，PageLSN 不可信，重做时不跳过；事务状态比日志新，
+// 日志中出现的事务只看 commitLog 和 abortLog，两者都没有的事务在备份结束时还没有结束，回滚
+// 时间点恢复：在备份的日志之后接上归档的日志，回放到指定的终点为止，之后的日志全部丢弃；备份结束之后的检查点
+// 是对当时的页面文件做的，对备份里的页面不成立，忽略；终点之后才结束的事务与备份结束时未结束的事务一样回滚
+// 检查点记录 RedoLSN 之前的修改都已落盘，恢复时从 RedoLSN 开始重做；
+// UndoLSN 是检查点时仍活跃的事务的第一条日志，恢复时从 UndoLSN 开始收集需要回滚的日志
+// 检查点之后 UndoLSN 所在段之前的日志段都已删除，rewind 回到的是剩下的最早一段，最后一个检查点一定在其中
 public class Recover {
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_CHECKPOINT = 2;
+    private static final byte LOG_TYPE_DELTA = 3;
+    private static final byte LOG_TYPE_COMMIT = 4;
+    private static final byte LOG_TYPE_ABORT = 5;
     private static final int REDO = 0;
     private static final int UNDO = 1;
     // [LogType] [XID] [UID] [OldRaw] [NewRaw]
@@ -34,184 +64,456 @@ public class Recover {
     private static final int OF_XID = OF_TYPE + 1;
     private static final int OF_UPDATE_UID = OF_XID + 8;
     private static final int OF_UPDATE_RAW = OF_UPDATE_UID + 8;
+    // [LogType] [XID] [UID] [Offset] [Length] [OldRaw] [NewRaw] ...
+    private static final int OF_DELTA = OF_UPDATE_UID + 8;
+    private static final int DELTA_HEADER = 4;
+    // 两段改动之间相同的字节不超过段头大小时合并成一段
+    private static final int DELTA_GAP = DELTA_HEADER;
     // [LogType] [XID] [Pgno] [Offset] [Raw]
     private static final int OF_INSERT_PGNO = OF_XID + 8;
     private static final int OF_INSERT_OFFSET = OF_INSERT_PGNO + 4;
     private static final int OF_INSERT_RAW = OF_INSERT_OFFSET + 2;
+    // [LogType] [RedoLSN] [UndoLSN] [PageNumber]
+    private static final int OF_CHECKPOINT_REDO = OF_TYPE + 1;
+    private static final int OF_CHECKPOINT_UNDO = OF_CHECKPOINT_REDO + 8;
+    private static final int OF_CHECKPOINT_PAGES = OF_CHECKPOINT_UNDO + 8;
+    private static final int CHECKPOINT_LOG_SIZE = OF_CHECKPOINT_PAGES + 4;
+    // [LogType] [XID]
+    private static final int OUTCOME_LOG_SIZE = OF_XID + 8;
 
-    static class InsertLogInfo {
+    // 需要重做或回滚的一条日志，lsn 为它在日志中的位置
+    static abstract class LogInfo {
+        long lsn;
         long xid;
         int pgno;
-        short offset;
+        int offset;
+    }
+
+    static class InsertLogInfo extends LogInfo {
         byte[] raw;
     }
 
-    static class UpdateLogInfo {
-        long xid;
-        int pgno;
-        short offset;
-        byte[] oldRaw;
-        byte[] newRaw;
+    // 页内若干段字节的改写，offset 是 DataItem 的位置，offsets 是每段相对它的偏移
+    static class UpdateLogInfo extends LogInfo {
+        int[] offsets;
+        byte[][] oldRaws;
+        byte[][] newRaws;
+    }
+
+    static class CheckpointLogInfo {
+        long redoLsn;
+        long undoLsn;
+        int pageNumber;
     }
 
-    public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
+    // 分析的结果：需要重做的日志按页分组，需要回滚的日志按事务分组，组内按 LSN 排列
+    static class Analysis {
+        long redoLsn;
+        long undoLsn;
+        int maxPgno;
+        int minPgno = Integer.MAX_VALUE;
+        Map<Integer, List<LogInfo>> redo = new HashMap<>();
+        Map<Long, List<LogInfo>> undo = new HashMap<>();
+        // 写了 commitLog 或 abortLog 的事务，值为是否提交
+        Map<Long, Boolean> outcomes = new HashMap<>();
+        // 回放停止的位置，之后的日志不再需要
+        long stop;
+    }
+
+    // 只读一遍日志，之后按页并行重做，再按事务并行回滚
+    // backupEnd 为备份的日志终点，不是备份时为 -1；target 为时间点恢复的终点，为 null 时回放全部日志
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc, long backupEnd, RecoveryTarget target) {
+        boolean backup = backupEnd >= 0;
         System.out.println("recovering...");
-        lg.rewind();
-        int maxPgno = 0;
-        while (true) {
-            byte[] log = lg.next();
-            if (log == null) break;
-            int pgno;
-            if (isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                pgno = li.pgno;
-            } else {
-                UpdateLogInfo li = parseUpdateLog(log);
-                pgno = li.pgno;
-            }
-            if (pgno > maxPgno) maxPgno = pgno;
-        }
-        if (maxPgno == 0) maxPgno = 1;
-        pc.truncateByPageNo(maxPgno);
-        System.out.println("Truncate to " + maxPgno + " pages.");
-
-        redoTranscations(tm, lg, pc);
-        System.out.println("Redo Transcations over");
-
-        undoTranscations(tm, lg, pc);
+        Analysis an = analyze(tm, lg, backupEnd, target);
+        if (target != null) {
+            if (an.stop < backupEnd) Panic.panic(Error.RecoveryTargetTooEarlyException);
+            // 回滚时补写的 abortLog 要接在终点之后
+            try {
+                lg.truncate(an.stop);
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+        }
+        if (an.maxPgno == 0) an.maxPgno = 1;
+        pc.truncateByPageNo(an.maxPgno);
+        System.out.println("Truncate to " + an.maxPgno + " pages.");
+        // 检查点之后的修改大多集中在末尾的页面，提示页面缓存预读
+        if (an.minPgno <= an.maxPgno) pc.prefetch(an.minPgno, an.maxPgno - an.minPgno + 1);
+
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            // 每页的日志由一个任务按 LSN 顺序重做，不同页之间互不影响
+            pool.submit(() -> an.redo.entrySet().parallelStream()
+                    .forEach(e -> redoPage(pc, e.getKey(), e.getValue(), backup))).get();
+            System.out.println("Redo Transcations over");
+
+            // 活跃事务修改的 DataItem 互不重叠，不同事务可以同时回滚
+            pool.submit(() -> an.undo.values().parallelStream()
+                    .forEach(logs -> undoTransaction(pc, logs))).get();
+        } catch (InterruptedException | ExecutionException e) {
+            Panic.panic(e);
+        } finally {
+            pool.shutdown();
+        }
+        for (long xid : an.undo.keySet()) {
+            // 旧格式的日志只能读，恢复之后整个换掉
+            if (!lg.isLegacy()) lg.log(abortLog(xid));
+            tm.abort(xid);
+        }
         System.out.println("Undo Transcations over");
 
         System.out.println("Recover over");
     }
 
-    private static void redoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
+    // 从现存最早的日志读到末尾或者终点，遇到检查点时丢掉它不再需要的日志；每个事务的状态只查一次
+    private static Analysis analyze(TransactionManager tm, Logger lg, long backupEnd, RecoveryTarget target) {
+        boolean backup = backupEnd >= 0;
+        Analysis an = new Analysis();
         lg.rewind();
+        an.redoLsn = an.undoLsn = lg.position();
+        int checkpointPages = 0;
+        List<LogInfo> logs = new ArrayList<>();
+        long maxXid = 0;
         while (true) {
-            byte[] log = lg.next();
-            if (log == null) break;
-            if (isInsertLog(log)) {
-                InsertLogInfo ili = parseInsertLog(log);
-                long xid = ili.xid;
-                if (!tm.isActive(xid)) {
-                    doInsertLog(pc, ili, REDO);
-                }
-            } else {
-                UpdateLogInfo uli = parseUpdateLog(log);
-                long xid = uli.xid;
-                if (!tm.isActive(xid)) {
-                    doUpdateLog(pc, uli, REDO);
-                }
+            long lsn = an.stop = lg.position();
+            if (target != null && lsn >= target.lsn) break;
+            ByteBuffer log = lg.nextRecord();
+            if (log == null) {
+                if (target != null && target.xid >= 0) Panic.panic(Error.RecoveryTargetNotFoundException);
+                break;
+            }
+            if (isCheckpointLog(log)) {
+                if (backup && lsn >= backupEnd) continue;
+                CheckpointLogInfo cli = parseCheckpointLog(log);
+                an.redoLsn = cli.redoLsn;
+                an.undoLsn = cli.undoLsn;
+                checkpointPages = cli.pageNumber;
+                long start = Math.min(cli.redoLsn, cli.undoLsn);
+                int k = 0;
+                while (k < logs.size() && logs.get(k).lsn < start) k++;
+                logs.subList(0, k).clear();
+                continue;
+            }
+            if (isOutcomeLog(log)) {
+                long xid = log.getLong(log.position() + OF_XID);
+                if (target != null && xid == target.xid) break;
+                an.outcomes.put(xid, log.get(log.position() + OF_TYPE) == LOG_TYPE_COMMIT);
+                maxXid = Math.max(maxXid, xid);
+                continue;
+            }
+            LogInfo li = isInsertLog(log) ? parseInsertLog(log) : parseUpdateLog(log);
+            li.lsn = lsn;
+            logs.add(li);
+            maxXid = Math.max(maxXid, li.xid);
+        }
+
+        // 备份之后才开始的事务不在备份的 TM 中
+        if (target != null) tm.extend(maxXid);
+
+        // 检查点之前分配的页面都已落盘，只需要再看检查点之后的日志
+        an.maxPgno = checkpointPages;
+        Map<Long, Boolean> active = new HashMap<>();
+        for (LogInfo li : logs) {
+            if (li.pgno > an.maxPgno) an.maxPgno = li.pgno;
+            if (li.pgno < an.minPgno) an.minPgno = li.pgno;
+            if (active.computeIfAbsent(li.xid, xid -> backup ? isActiveInBackup(tm, an, xid) : isActive(tm, an, xid))) {
+                if (li.lsn >= an.undoLsn) an.undo.computeIfAbsent(li.xid, k -> new ArrayList<>()).add(li);
+            } else if (li.lsn >= an.redoLsn) {
+                an.redo.computeIfAbsent(li.pgno, k -> new ArrayList<>()).add(li);
             }
         }
+        return an;
     }
 
-    private static void undoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        Map<Long, List<byte[]>> undoLogs = new HashMap<>();
-        lg.rewind();
-        while (true) {
-            byte[] log = lg.next();
-            if (log == null) break;
-            long xid;
-            if (isInsertLog(log)) {
-                InsertLogInfo ili = parseInsertLog(log);
-                xid = ili.xid;
-            } else {
-                UpdateLogInfo uli = parseUpdateLog(log);
-                xid = uli.xid;
-            }
-            if (tm.isActive(xid)) {
-                if (!undoLogs.containsKey(xid)) {
-                    undoLogs.put(xid, new ArrayList<>());
+    // TM 的状态不随提交落盘，commitLog 或 abortLog 已经落盘而状态丢失时，事务已经结束，补上 TM 中的状态；
+    // 回滚的事务和运行时一样不做物理回滚，它的修改已经不可见，之后的事务可能已经改写了同一位置
+    private static boolean isActive(TransactionManager tm, Analysis an, long xid) {
+        if (!tm.isActive(xid)) return false;
+        Boolean committed = an.outcomes.get(xid);
+        if (committed == null) return true;
+        if (committed) tm.commit(xid);
+        else tm.abort(xid);
+        return false;
+    }
+
+    // 备份中的事务状态与日志终点一致，仍以日志中的结局为准，没有结局的事务一律回滚
+    private static boolean isActiveInBackup(TransactionManager tm, Analysis an, long xid) {
+        if (xid == TransactionManagerImpl.SUPER_XID) return false;
+        Boolean committed = an.outcomes.get(xid);
+        if (committed == null) return true;
+        if (committed && !tm.isCommitted(xid)) tm.commit(xid);
+        if (!committed && !tm.isAborted(xid)) tm.abort(xid);
+        return false;
+    }
+
+    // 不比 PageLSN 新的日志在页面写回时已经包含在页面中，跳过；恢复备份时全部重做
+    private static void redoPage(PageCache pc, int pgno, List<LogInfo> logs, boolean backup) {
+        Page pg = null;
+        try {
+            pg = pc.getPage(pgno);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        pg.rLock();
+        try {
+            long pageLsn = backup ? 0 : PageX.getLsn(pg);
+            for (LogInfo li : logs) {
+                if (li.lsn <= pageLsn) continue;
+                if (li instanceof InsertLogInfo) {
+                    doInsertLog(pg, (InsertLogInfo) li, REDO);
+                } else {
+                    doUpdateLog(pg, (UpdateLogInfo) li, REDO);
                 }
-                undoLogs.get(xid).add(log);
+                PageX.setLsn(pg, li.lsn);
             }
+        } finally {
+            pg.rUnLock();
+            pg.release();
         }
+    }
 
-        for (Map.Entry<Long, List<byte[]>> entry : undoLogs.entrySet()) {
-            List<byte[]> logs = entry.getValue();
-            for (int i = logs.size() - 1; i >= 0; i--) {
-                byte[] log = logs.get(i);
-                if (isInsertLog(log)) {
-                    InsertLogInfo ili = parseInsertLog(log);
-                    doInsertLog(pc, ili, UNDO);
+    // 倒序回滚一个事务的日志；不同事务可能回滚同一页，插入会改写 FSO，因此持有页面的独占锁
+    private static void undoTransaction(PageCache pc, List<LogInfo> logs) {
+        for (int i = logs.size() - 1; i >= 0; i--) {
+            LogInfo li = logs.get(i);
+            Page pg = null;
+            try {
+                pg = pc.getPage(li.pgno);
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+            pg.lock();
+            try {
+                if (li instanceof InsertLogInfo) {
+                    doInsertLog(pg, (InsertLogInfo) li, UNDO);
                 } else {
-                    UpdateLogInfo uli = parseUpdateLog(log);
-                    doUpdateLog(pc, uli, UNDO);
+                    doUpdateLog(pg, (UpdateLogInfo) li, UNDO);
                 }
+            } finally {
+                pg.unlock();
+                pg.release();
             }
-            tm.abort(entry.getKey());
         }
     }
 
-    private static void doInsertLog(PageCache pc, InsertLogInfo ili, int flag) {
-        int pgno = ili.pgno;
-        Page pg = pc.getPage(pgno);
-        try {
-            if (flag == UNDO) DataItem.setDataItemInValid(ili.raw);
-            PageX.recoverInsert(pg, ili.offset, ili.raw);
-        } finally {
-            pg.release();
-        }
+    private static void doInsertLog(Page pg, InsertLogInfo ili, int flag) {
+        if (flag == UNDO) DataItem.setDataItemInValid(ili.raw);
+        PageX.recoverInsert(pg, ili.offset, ili.raw);
+    }
 
+    private static void doUpdateLog(Page pg, UpdateLogInfo uli, int flag) {
+        for (int i = 0; i < uli.offsets.length; i++) {
+            byte[] raw = flag == REDO ? uli.newRaws[i] : uli.oldRaws[i];
+            PageX.recoverUpdate(pg, uli.offset + uli.offsets[i], raw);
+        }
     }
 
-    private static void doUpdateLog(PageCache pc, UpdateLogInfo uli, int flag) {
-        int pgno = uli.pgno;
-        Page pg = pc.getPage(pgno);
-        try {
-            if (flag == REDO) {
-                PageX.recoverUpdate(pg, uli.offset, uli.newRaw);
-            } else {
-                PageX.recoverUpdate(pg, uli.offset, uli.oldRaw);
-            }
 
-        } finally {
-            pg.release();
-        }
+    // 解析直接读日志的视图，只拷贝恢复时需要保留的 Raw
+    private static boolean isInsertLog(ByteBuffer log) {
+        return log.get(log.position() + OF_TYPE) == LOG_TYPE_INSERT;
+    }
+
+    private static boolean isCheckpointLog(ByteBuffer log) {
+        return log.get(log.position() + OF_TYPE) == LOG_TYPE_CHECKPOINT;
     }
 
+    private static boolean isOutcomeLog(ByteBuffer log) {
+        byte type = log.get(log.position() + OF_TYPE);
+        return type == LOG_TYPE_COMMIT || type == LOG_TYPE_ABORT;
+    }
 
-    private static boolean isInsertLog(byte[] log) {
-        return log[OF_TYPE] == LOG_TYPE_INSERT;
+    private static CheckpointLogInfo parseCheckpointLog(ByteBuffer log) {
+        int p = log.position();
+        CheckpointLogInfo cli = new CheckpointLogInfo();
+        cli.redoLsn = log.getLong(p + OF_CHECKPOINT_REDO);
+        cli.undoLsn = log.getLong(p + OF_CHECKPOINT_UNDO);
+        cli.pageNumber = log.getInt(p + OF_CHECKPOINT_PAGES);
+        return cli;
     }
 
-    private static InsertLogInfo parseInsertLog(byte[] log) {
+    private static InsertLogInfo parseInsertLog(ByteBuffer log) {
+        int p = log.position();
         InsertLogInfo ili = new InsertLogInfo();
-        ili.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
-        ili.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
-        ili.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
-        ili.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
+        ili.xid = log.getLong(p + OF_XID);
+        ili.pgno = log.getInt(p + OF_INSERT_PGNO);
+        ili.offset = log.getShort(p + OF_INSERT_OFFSET) & 0xFFFF;
+        ili.raw = new byte[log.limit() - p - OF_INSERT_RAW];
+        log.position(p + OF_INSERT_RAW);
+        log.get(ili.raw);
         return ili;
     }
 
-    private static UpdateLogInfo parseUpdateLog(byte[] log) {
+    // updateLog 解析为从 DataItem 开头的一段改写，deltaLog 解析为其中记录的各段
+    private static UpdateLogInfo parseUpdateLog(ByteBuffer log) {
+        int p = log.position();
         UpdateLogInfo uli = new UpdateLogInfo();
-        uli.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
-        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
-        uli.offset = (short) (uid & ((1L << 16) - 1));
+        uli.xid = log.getLong(p + OF_XID);
+        long uid = log.getLong(p + OF_UPDATE_UID);
+        uli.offset = (int) (uid & ((1L << 16) - 1));
         uid >>>= 32;
         uli.pgno = (int) (uid & ((1L << 32) - 1));
-        int length = (log.length - OF_UPDATE_RAW) / 2;
-        uli.oldRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW, OF_UPDATE_RAW + length);
-        uli.newRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW + length, OF_UPDATE_RAW + 2 * length);
+        if (log.get(p + OF_TYPE) != LOG_TYPE_DELTA) {
+            int length = (log.limit() - p - OF_UPDATE_RAW) / 2;
+            uli.offsets = new int[]{0};
+            uli.oldRaws = new byte[][]{new byte[length]};
+            uli.newRaws = new byte[][]{new byte[length]};
+            log.position(p + OF_UPDATE_RAW);
+            log.get(uli.oldRaws[0]);
+            log.get(uli.newRaws[0]);
+            return uli;
+        }
+        int count = 0;
+        for (int pos = p + OF_DELTA; pos < log.limit(); pos += DELTA_HEADER + 2 * (log.getShort(pos + 2) & 0xFFFF)) {
+            count++;
+        }
+        uli.offsets = new int[count];
+        uli.oldRaws = new byte[count][];
+        uli.newRaws = new byte[count][];
+        log.position(p + OF_DELTA);
+        for (int i = 0; i < count; i++) {
+            uli.offsets[i] = log.getShort() & 0xFFFF;
+            int length = log.getShort() & 0xFFFF;
+            uli.oldRaws[i] = new byte[length];
+            uli.newRaws[i] = new byte[length];
+            log.get(uli.oldRaws[i]);
+            log.get(uli.newRaws[i]);
+        }
         return uli;
     }
 
-    public static byte[] wrapUpdateLog(long xid, DataItem di) {
-        byte[] logType = {LOG_TYPE_UPDATE};
-        byte[] xidRaw = Parser.long2Byte(xid);
-        byte[] uidRaw = Parser.long2Byte(di.getUid());
-        byte[] oldRaw = di.getOldRaw();
+    // 把一条日志解析成订阅者看到的改动，检查点返回 null
+    static ChangeEvent parseChange(ByteBuffer log, long lsn) {
+        ChangeEvent ce = new ChangeEvent();
+        ce.lsn = lsn;
+        if (isCheckpointLog(log)) {
+            return null;
+        }
+        if (isOutcomeLog(log)) {
+            ce.type = log.get(log.position() + OF_TYPE) == LOG_TYPE_COMMIT ? ChangeEvent.COMMIT : ChangeEvent.ABORT;
+            ce.xid = log.getLong(log.position() + OF_XID);
+            return ce;
+        }
+        if (isInsertLog(log)) {
+            InsertLogInfo ili = parseInsertLog(log);
+            ce.type = ChangeEvent.INSERT;
+            ce.xid = ili.xid;
+            // ValidFlag 是 raw 的第一个字节，其中带有复用空洞时的代数
+            ce.uid = Types.addressToUid(ili.pgno, ili.offset, DataItem.getGeneration(ili.raw[0]));
+            ce.raw = ili.raw;
+            return ce;
+        }
+        ce.uid = log.getLong(log.position() + OF_UPDATE_UID);
+        UpdateLogInfo uli = parseUpdateLog(log);
+        ce.type = ChangeEvent.UPDATE;
+        ce.xid = uli.xid;
+        ce.offsets = uli.offsets;
+        ce.newRaws = uli.newRaws;
+        return ce;
+    }
+
+    // 日志直接写进 Logger 的批次缓冲区，不再先拼成数组
+    // 只记录 before 之后改变了的字节：改 XMAX 只记 8 个字节，B+ 树节点插入一个键只记键数和插入点之后移动过的部分
+    public static LogRecord updateLog(long xid, DataItem di) {
         SubArray raw = di.getRaw();
-        byte[] newRaw = Arrays.copyOfRange(raw.raw, raw.start, raw.end);
-        return Bytes.concat(logType, xidRaw, uidRaw, oldRaw, newRaw);
+        return deltaLog(xid, di.getUid(), di.getOldRaw(), raw.raw, raw.start);
+    }
+
+    // 改写 uid 所指位置上的一段字节，回收空间时用 SUPER_XID 记录空洞头部的改写
+    public static LogRecord updateLog(long xid, long uid, byte[] oldRaw, byte[] newRaw) {
+        return deltaLog(xid, uid, oldRaw, newRaw, 0);
+    }
+
+    // 比较 oldRaw 与 newRaw 中从 newStart 开始的 DataItem，从 i 开始找下一段改动 [from, to)，返回 from << 32 | to，没有时返回 -1
+    // 相隔不超过 DELTA_GAP 的两段合并成一段
+    private static long nextDelta(byte[] oldRaw, byte[] newRaw, int newStart, int i) {
+        int n = oldRaw.length;
+        while (i < n && oldRaw[i] == newRaw[newStart + i]) i++;
+        if (i == n) return -1;
+        int from = i, to = i;
+        while (i < n && i - to <= DELTA_GAP) {
+            if (oldRaw[i] != newRaw[newStart + i]) to = i + 1;
+            i++;
+        }
+        return (long) from << 32 | to;
+    }
+
+    // 各段在计算大小和写入时各找一遍，不需要额外保存；一段改动都没有时记一个空段
+    private static LogRecord deltaLog(long xid, long uid, byte[] oldRaw, byte[] newRaw, int newStart) {
+        return new LogRecord() {
+            @Override
+            public int size() {
+                int size = OF_DELTA + DELTA_HEADER;
+                for (long r = nextDelta(oldRaw, newRaw, newStart, 0); r != -1; r = nextDelta(oldRaw, newRaw, newStart, (int) r)) {
+                    size += DELTA_HEADER + 2 * ((int) r - (int) (r >>> 32));
+                }
+                return size == OF_DELTA + DELTA_HEADER ? size : size - DELTA_HEADER;
+            }
+
+            @Override
+            public void writeTo(ByteBuffer buf) {
+                buf.put(LOG_TYPE_DELTA).putLong(xid).putLong(uid);
+                long r = nextDelta(oldRaw, newRaw, newStart, 0);
+                if (r == -1) {
+                    buf.putShort((short) 0).putShort((short) 0);
+                }
+                for (; r != -1; r = nextDelta(oldRaw, newRaw, newStart, (int) r)) {
+                    int from = (int) (r >>> 32), length = (int) r - from;
+                    buf.putShort((short) from).putShort((short) length);
+                    buf.put(oldRaw, from, length).put(newRaw, newStart + from, length);
+                }
+            }
+        };
     }
 
-    public static byte[] wrapInsertLog(long xid, Page pg, byte[] raw) {
-        byte[] logTypeRaw = {LOG_TYPE_INSERT};
-        byte[] xidRaw = Parser.long2Byte(xid);
-        byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
-        byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(pg));
-        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
+    public static LogRecord insertLog(long xid, int pgno, int offset, byte[] raw) {
+        return new LogRecord() {
+            @Override
+            public int size() {
+                return OF_INSERT_RAW + raw.length;
+            }
+
+            @Override
+            public void writeTo(ByteBuffer buf) {
+                buf.put(LOG_TYPE_INSERT).putLong(xid).putInt(pgno).putShort((short) offset).put(raw);
+            }
+        };
+    }
+
+    public static LogRecord checkpointLog(long redoLsn, long undoLsn, int pageNumber) {
+        return new LogRecord() {
+            @Override
+            public int size() {
+                return CHECKPOINT_LOG_SIZE;
+            }
+
+            @Override
+            public void writeTo(ByteBuffer buf) {
+                buf.put(LOG_TYPE_CHECKPOINT).putLong(redoLsn).putLong(undoLsn).putInt(pageNumber);
+            }
+        };
+    }
+
+    public static LogRecord commitLog(long xid) {
+        return outcomeLog(LOG_TYPE_COMMIT, xid);
+    }
+
+    public static LogRecord abortLog(long xid) {
+        return outcomeLog(LOG_TYPE_ABORT, xid);
+    }
+
+    private static LogRecord outcomeLog(byte type, long xid) {
+        return new LogRecord() {
+            @Override
+            public int size() {
+                return OUTCOME_LOG_SIZE;
+            }
+
+            @Override
+            public void writeTo(ByteBuffer buf) {
+                buf.put(type).putLong(xid);
+            }
+        };
     }
 }
@@ -0,0 +1,46 @@
+package top.wanjie.mysql.backend.dm;
+
+import top.wanjie.mysql.backend.common.Error;
+import top.wanjie.mysql.backend.utils.Panic;
+
+/**
+ * @Author fraven
+ * @Description 时间点恢复的终点，写作 lsn:N 或者 xid:N。
+ * lsn:N 回放 LSN 小于 N 的日志；xid:N 回放到事务 N 的 commitLog 或 abortLog 之前为止，
+ * N 以及之后才结束的事务都视为没有结束而回滚，用来撤销一次误操作。
+ * 终点之后的日志在恢复时全部丢弃
+ * @Date 2023/05/21/10:26
+ */
+public class RecoveryTarget {
+    public long lsn = Long.MAX_VALUE;
+    // -1 表示不按事务停止
+    public long xid = -1;
+
+    public static RecoveryTarget parse(String target) {
+        RecoveryTarget rt = new RecoveryTarget();
+        int colon = target == null ? -1 : target.indexOf(':');
+        if(colon < 0) {
+            Panic.panic(Error.InvalidRecoveryTargetException);
+        }
+        long value = 0;
+        try {
+            value = Long.parseLong(target.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            Panic.panic(Error.InvalidRecoveryTargetException);
+        }
+        if(value < 0) {
+            Panic.panic(Error.InvalidRecoveryTargetException);
+        }
+        switch(target.substring(0, colon)) {
+            case "lsn":
+                rt.lsn = value;
+                break;
+            case "xid":
+                rt.xid = value;
+                break;
+            default:
+                Panic.panic(Error.InvalidRecoveryTargetException);
+        }
+        return rt;
+    }
+}
@@ -12,9 +12,16 @@ import java.util.Arrays;
 /**
  * @Author fraven
  * @Description [ValidFlag] [DataSize] [Data]
+ * ValidFlag 的最低位表示无效（插入被回滚），第二位表示已被回收成为空洞，高 6 位是代数。
+ * 空洞被新的 DataItem 复用时代数加一，代数同时保存在 uid 的 16-21 位，持有过期 uid 的读取会因代数不一致而读不到数据
  * @Date 2023/04/03/21:12
  */
 public interface DataItem {
+    byte FLAG_INVALID = 1;
+    byte FLAG_FREE = 2;
+    int GEN_SHIFT = 2;
+    int GEN_MASK = 0x3F;
+
     SubArray data();
     void before();
     void unBefore();
@@ -37,18 +44,28 @@ public interface DataItem {
         return Bytes.concat(valid, dataSize, raw);
     }
 
-    public static DataItem parseDataItem(Page pg, short offset, DataManagerImpl dm) {
+    // DataSize 按无符号 16 位解析，大页面中的数据可以超过 32KB
+    public static DataItem parseDataItem(Page pg, long uid, DataManagerImpl dm) {
         byte[] pgData = pg.getData();
-        short size = Parser.parseShort(Arrays.copyOfRange(pgData, offset + DataItemImpl.OF_SIZE, offset + DataItemImpl.OF_DATA));
-        short length = (short) (size + DataItemImpl.OF_DATA);
-        long uid = Types.addressToUid(pg.getPageNumber(), offset);
+        int offset = Types.uidToOffset(uid);
+        int size = Parser.parseShort(Arrays.copyOfRange(pgData, offset + DataItemImpl.OF_SIZE, offset + DataItemImpl.OF_DATA)) & 0xFFFF;
+        int length = size + DataItemImpl.OF_DATA;
         SubArray raw = new SubArray(pgData, offset, offset + length);
         byte[] oldRaw = new byte[length];
         return new DataItemImpl(raw, oldRaw, uid, pg, dm);
     }
 
+    // 只置无效位，保留代数
     public static void setDataItemInValid(byte[] raw) {
-        raw[DataItemImpl.OF_VALID] = (byte)1;
+        raw[DataItemImpl.OF_VALID] |= FLAG_INVALID;
+    }
+
+    public static void setGeneration(byte[] raw, int gen) {
+        raw[DataItemImpl.OF_VALID] = (byte)((raw[DataItemImpl.OF_VALID] & ~(GEN_MASK << GEN_SHIFT)) | ((gen & GEN_MASK) << GEN_SHIFT));
+    }
+
+    public static int getGeneration(byte flag) {
+        return (flag >>> GEN_SHIFT) & GEN_MASK;
     }
 
 
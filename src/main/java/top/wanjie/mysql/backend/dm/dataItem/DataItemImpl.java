@@ -4,6 +4,7 @@ import top.wanjie.mysql.backend.common.SubArray;
 import top.wanjie.mysql.backend.dm.DataManager;
 import top.wanjie.mysql.backend.dm.DataManagerImpl;
 import top.wanjie.mysql.backend.dm.page.Page;
+import top.wanjie.mysql.backend.utils.Types;
 
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -39,30 +40,37 @@ public class DataItemImpl implements DataItem{
         this.wlock = lock.writeLock();
     }
 
+    // 未被回滚、未被回收，且代数与 uid 一致
     public boolean isValid() {
-        return raw.raw[raw.start + OF_VALID] == (byte)0;
+        byte flag = raw.raw[raw.start + OF_VALID];
+        return (flag & (FLAG_INVALID | FLAG_FREE)) == 0 && DataItem.getGeneration(flag) == Types.uidToGeneration(uid);
     }
     @Override
     public SubArray data() {
         return new SubArray(raw.raw, raw.start + OF_DATA, raw.end);
     }
 
+    // before 到 after/unBefore 之间持有页面的共享锁，页面不会在修改完成、日志落盘之前被写回
     @Override
     public void before() {
         wlock.lock();
-        page.setDirty(true);
+        page.rLock();
         System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
     }
 
     @Override
     public void unBefore() {
         System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
+        page.setDirty(true);
+        page.rUnLock();
         wlock.unlock();
     }
 
     @Override
     public void after(long xid) {
+        page.setDirty(true);
         dm.logDataItem(xid ,this);
+        page.rUnLock();
         wlock.unlock();
     }
 
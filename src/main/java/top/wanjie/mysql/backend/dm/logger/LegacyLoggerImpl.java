@@ -0,0 +1,188 @@
+package top.wanjie.mysql.backend.dm.logger;
+
+import top.wanjie.mysql.backend.common.Error;
+import top.wanjie.mysql.backend.utils.Panic;
+import top.wanjie.mysql.backend.utils.Parser;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * @Author fraven
+ * @Description 分段之前的单文件日志 db.log，只能读，恢复完成后由 Logger.upgrade 换成分段日志。
+ * 单文件日志有两种格式：
+ * [XChecksum] [Log1] ... [LogN]，每条日志为 [Size] [Checksum] [Data]，XChecksum 是对所有日志计算的累积校验和；
+ * [Magic] [Log1] ... [LogN]，每条日志与分段日志相同，为 [Size] [Checksum] [LSN] [Data]，LSN 即日志在文件中的偏移
+ * @Date 2023/05/14/16:02
+ */
+public class LegacyLoggerImpl implements Logger {
+    static final int MAGIC = 0x4D59574C;
+    private static final int HEADER_SIZE = 4;
+    private static final int SEED = 13331;
+    // 累积校验和格式的日志 [Size] [Checksum] [Data]
+    private static final int OF_CHECKSUM = 4;
+    private static final int OF_XCHECKSUM_DATA = OF_CHECKSUM + 4;
+
+    private RandomAccessFile raf;
+    private FileChannel fc;
+    private long fileSize;
+    private long position;
+    // 文件头是否为 Magic，否则为累积校验和格式
+    private boolean crc;
+
+    LegacyLoggerImpl(RandomAccessFile raf, FileChannel fc) {
+        this.raf = raf;
+        this.fc = fc;
+    }
+
+    void init() {
+        try {
+            fileSize = raf.length();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        if(fileSize < HEADER_SIZE) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+        LoggerImpl.read(fc, buf, 0);
+        int header = Parser.parseInt(buf.array());
+        crc = header == MAGIC;
+        if(!crc) {
+            checkXCheckSum(header);
+        }
+        rewind();
+    }
+
+    // 累积校验和格式需要扫描整个文件核对校验和
+    private void checkXCheckSum(int xCheckSum) {
+        long pos = HEADER_SIZE;
+        int xCheck = 0;
+        while(true) {
+            byte[] log = internNext(pos);
+            if(log == null) break;
+            xCheck = calCheckSum(xCheck, log);
+            pos += log.length;
+        }
+        if(xCheck != xCheckSum) {
+            Panic.panic(Error.BadLogFileException);
+        }
+    }
+
+    private int calCheckSum(int checkSum, byte[] data) {
+        for (byte b : data) {
+            checkSum = checkSum * SEED + b;
+        }
+        return checkSum;
+    }
+
+    private int dataOffset() {
+        return crc ? LoggerImpl.OF_DATA : OF_XCHECKSUM_DATA;
+    }
+
+    private byte[] internNext(long pos) {
+        int ofData = dataOffset();
+        if(pos + ofData > fileSize) {
+            return null;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(4);
+        LoggerImpl.read(fc, buf, pos);
+        int size = Parser.parseInt(buf.array());
+        if(size < 0 || size + ofData + pos > fileSize) {
+            return null;
+        }
+        buf = ByteBuffer.allocate(ofData + size);
+        LoggerImpl.read(fc, buf, pos);
+        byte[] log = buf.array();
+        int checkSum = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_CHECKSUM + 4));
+        if(crc) {
+            if(checkSum != LoggerImpl.crc(log) || Parser.parseLong(Arrays.copyOfRange(log, LoggerImpl.OF_LSN, LoggerImpl.OF_DATA)) != pos) {
+                return null;
+            }
+        } else if(checkSum != calCheckSum(0, Arrays.copyOfRange(log, OF_XCHECKSUM_DATA, log.length))) {
+            return null;
+        }
+        return log;
+    }
+
+    @Override
+    public long log(LogRecord record) {
+        Panic.panic(Error.LegacyLogException);
+        return 0;
+    }
+
+    @Override
+    public long nextLsn() {
+        Panic.panic(Error.LegacyLogException);
+        return 0;
+    }
+
+    @Override
+    public void truncate(long x) throws Exception {
+        Panic.panic(Error.LegacyLogException);
+    }
+
+    @Override
+    public void truncateBefore(long lsn) {
+        Panic.panic(Error.LegacyLogException);
+    }
+
+    @Override
+    public ByteBuffer nextRecord() {
+        byte[] log = internNext(position);
+        if(log == null) {
+            return null;
+        }
+        position += log.length;
+        return ByteBuffer.wrap(log, dataOffset(), log.length - dataOffset());
+    }
+
+    @Override
+    public void rewind() {
+        position = HEADER_SIZE;
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public void seek(long lsn) {
+        position = lsn;
+    }
+
+    @Override
+    public boolean isLegacy() {
+        return true;
+    }
+
+    @Override
+    public void backup(String path, long from, long to) {
+        Panic.panic(Error.LegacyLogException);
+    }
+
+    @Override
+    public LogTailer tail(long lsn) {
+        Panic.panic(Error.LegacyLogException);
+        return null;
+    }
+
+    @Override
+    public void archive(String archive) {
+        Panic.panic(Error.LegacyLogException);
+    }
+
+    @Override
+    public void close() {
+        try {
+            fc.close();
+            raf.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package top.wanjie.mysql.backend.dm.logger;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @Author fraven
+ * @Description 一条待追加日志的 Data 部分。Logger 在持有锁时把它直接写进待写批次的缓冲区，
+ * 不需要先拼成一个完整的数组
+ * @Date 2023/05/16/20:37
+ */
+public interface LogRecord {
+    // Data 的字节数
+    int size();
+    // 从 buf 的 position 开始写入恰好 size() 个字节
+    void writeTo(ByteBuffer buf);
+
+    public static LogRecord of(byte[] data) {
+        return new LogRecord() {
+            @Override
+            public int size() {
+                return data.length;
+            }
+
+            @Override
+            public void writeTo(ByteBuffer buf) {
+                buf.put(data);
+            }
+        };
+    }
+}
@@ -0,0 +1,20 @@
+package top.wanjie.mysql.backend.dm.logger;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @Author fraven
+ * @Description 从某个 LSN 开始顺序读已落盘的日志，读到末尾时等待新的日志落盘，供复制和变更订阅使用。
+ * 与 Logger 的 nextRecord 互不影响，每个 LogTailer 有自己的读缓冲和文件句柄，只能由一个线程使用
+ * @Date 2023/05/18/21:06
+ */
+public interface LogTailer {
+    // 读出下一条日志的 Data，没有新日志时最多等待 timeout 毫秒，超时或 Logger 已关闭时返回 null；
+    // 返回的是读缓冲上的视图，下一次读取之后失效。要读的段已经在检查点之后删除时抛出 LogTruncatedException
+    ByteBuffer next(long timeout) throws Exception;
+    // 上一次 next 返回的日志的 LSN
+    long lsn();
+    // 下一次 next 从这里开始找
+    long position();
+    void close();
+}
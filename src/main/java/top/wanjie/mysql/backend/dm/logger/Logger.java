@@ -2,7 +2,6 @@ package top.wanjie.mysql.backend.dm.logger;
 
 import top.wanjie.mysql.backend.common.Error;
 import top.wanjie.mysql.backend.utils.Panic;
-import top.wanjie.mysql.backend.utils.Parser;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -10,6 +9,9 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
 
 /**
  * @Author fraven
@@ -17,48 +19,74 @@ import java.nio.channels.FileChannel;
  * @Date 2023/04/03/17:46
  */
 public interface Logger {
-    void log(byte[] data);
+    // 追加一条日志，返回它的 LSN，返回时日志已经落盘
+    long log(LogRecord record);
+
+    default long log(byte[] data) {
+        return log(LogRecord.of(data));
+    }
+    // 下一条追加的日志将得到的 LSN
+    long nextLsn();
+    // 丢弃 x 之后的日志
     void truncate(long x) throws Exception;
-    byte[] next();
+    // 删除不再需要的日志，lsn 之前的日志之后不会再被读到
+    void truncateBefore(long lsn);
+    // 读出下一条日志的 Data，position 到 limit 即为 Data；返回的是读缓冲上的视图，下一次读取之后失效
+    ByteBuffer nextRecord();
+
+    default byte[] next() {
+        ByteBuffer buf = nextRecord();
+        if(buf == null) {
+            return null;
+        }
+        byte[] data = new byte[buf.remaining()];
+        buf.get(data);
+        return data;
+    }
     void rewind();
+    // 读指针，即下一次 next() 返回的日志的 LSN
+    long position();
+    void seek(long lsn);
+    // 是否为旧格式的单文件日志，旧格式只能读
+    boolean isLegacy();
+    // 等 to 之前的日志全部落盘后，把 [from, to) 所在的各段复制成 path 的日志，最后一段截到 to；
+    // 复制期间调用者要保证这些段不被删除
+    void backup(String path, long from, long to) throws Exception;
+    // 从 lsn 开始跟随读取已落盘的日志，lsn 必须是某条日志的起点、段的起点或者 nextLsn
+    LogTailer tail(long lsn);
+    // 之后 truncateBefore 不再删除日志段，而是移到 archive 名下，段号不变
+    void archive(String archive);
     void close();
 
     public static Logger create(String path) {
-        File f = new File(path+LoggerImpl.LOG_SUFFIX);
-        try {
-            if(!f.createNewFile()) {
-                Panic.panic(Error.FileExistsException);
-            }
-        } catch (Exception e) {
-            Panic.panic(e);
-        }
-        if(!f.canRead() || !f.canWrite()) {
-            Panic.panic(Error.FileCannotRWException);
-        }
-
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
+        return create(path, LoggerImpl.DEFAULT_SEGMENT_SIZE);
+    }
 
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));
-        try {
-            fc.position(0);
-            fc.write(buf);
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+    public static Logger create(String path, int segmentSize) {
+        if(!LoggerImpl.listSegments(path).isEmpty()) {
+            Panic.panic(Error.FileExistsException);
         }
-
-        return new LoggerImpl(raf, fc, 0);
+        LoggerImpl lg = new LoggerImpl(path, segmentSize);
+        lg.initEmpty();
+        return lg;
     }
 
+    // 优先打开分段日志，没有分段日志时打开旧格式的单文件日志
     public static Logger open(String path) {
         File f = new File(path+LoggerImpl.LOG_SUFFIX);
+        if(LoggerImpl.listSegments(path).isEmpty()) {
+            return openLegacy(f);
+        }
+        // 升级时建好分段日志之后、删除单文件日志之前崩溃，单文件日志已经不再需要
+        if(f.exists() && !f.delete()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+        LoggerImpl lg = new LoggerImpl(path, 0);
+        lg.init();
+        return lg;
+    }
+
+    private static Logger openLegacy(File f) {
         if(!f.exists()) {
             Panic.panic(Error.FileNotExistsException);
         }
@@ -75,9 +103,55 @@ public interface Logger {
             Panic.panic(e);
         }
 
-        LoggerImpl lg = new LoggerImpl(raf, fc);
+        LegacyLoggerImpl lg = new LegacyLoggerImpl(raf, fc);
         lg.init();
-
         return lg;
     }
+
+    // 用一个空的分段日志替换旧格式的单文件日志，调用者必须保证旧日志已经不再需要，即恢复已经完成且页面全部落盘
+    // 先建好分段日志再删除单文件日志，中途崩溃时下次打开会删除残留的单文件日志
+    public static Logger upgrade(Logger lg, String path) {
+        lg.close();
+        Logger nl = create(path);
+        File f = new File(path+LoggerImpl.LOG_SUFFIX);
+        if(!f.delete()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+        return nl;
+    }
+
+    // 从 path 的最后一段开始，依次在 sources 中找到编号连续的段复制过来，覆盖已有的段：
+    // 备份的最后一段被截到了备份终点，归档或者原数据库中的同一段更完整
+    public static void fetch(String path, String... sources) {
+        List<Long> nos = LoggerImpl.listSegments(path);
+        if(nos.isEmpty()) {
+            Panic.panic(Error.FileNotExistsException);
+        }
+        for(long no = nos.get(nos.size() - 1); ; no ++) {
+            File src = null;
+            for (String source : sources) {
+                File f = new File(LoggerImpl.segmentName(source, no));
+                if(f.exists()) {
+                    src = f;
+                    break;
+                }
+            }
+            if(src == null) {
+                return;
+            }
+            try {
+                Files.copy(src.toPath(), new File(LoggerImpl.segmentName(path, no)).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    // 删除 path 的所有日志文件
+    public static void remove(String path) {
+        for (long no : LoggerImpl.listSegments(path)) {
+            new File(LoggerImpl.segmentName(path, no)).delete();
+        }
+        new File(path+LoggerImpl.LOG_SUFFIX).delete();
+    }
 }
@@ -1,214 +1,673 @@
 package top.wanjie.mysql.backend.dm.logger;
 
-import com.google.common.primitives.Bytes;
 import top.wanjie.mysql.backend.common.Error;
 import top.wanjie.mysql.backend.utils.Panic;
-import top.wanjie.mysql.backend.utils.Parser;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.Arrays;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
 
 /**
  * @Author fraven
  * @Description
- * 日志文件标准格式为：
- * [XChecksum] [Log1] [Log2] ... [LogN] [BadTail]
- * XChecksum 为后续所有日志计算的Checksum，int类型
+ * 日志分段存放在 db.log.000000、db.log.000001 ... 中，每段大小固定为 SegmentSize，
+ * LSN 是全局的逻辑偏移，第 N 段覆盖 [N * SegmentSize, (N + 1) * SegmentSize) 的 LSN。
+ * 每段的格式为：
+ * [Magic] [SegmentSize] [BaseLsn] [Log1] [Log2] ... [LogN] [BadTail]
+ * Magic 4字节，SegmentSize 4字节int，BaseLsn 8字节long，即 N * SegmentSize
  * 每条正确日志的格式为：
- * [Size] [Checksum] [Data]
+ * [Size] [Checksum] [LSN] [Data]
  * Size 4字节int 标识Data长度
- * Checksum 4字节int
+ * Checksum 4字节int，对 Size、LSN、Data 计算的 CRC32C
+ * LSN 8字节long
+ * 每条日志独立校验，校验失败或 LSN 与所在位置不符的日志及其之后的内容都是写坏的尾部。
+ * 日志不跨段，当前段放不下时切换到下一段，段尾剩下的空间不用；读到段尾时跳到下一段的第一条日志。
+ * 打开时只需要扫描最后一段找到日志末尾并截掉坏尾；检查点之后，检查点需要的最早 LSN 所在段之前的段都可以删除
+ *
+ * 组提交：log 把日志直接序列化进待写批次的直接缓冲区后等待它落盘，同一时刻只有一个线程负责刷盘，
+ * 它换上另一块缓冲区，把整个批次用一次定位写写入文件并 force，然后唤醒批次内的所有调用者；
+ * 刷盘期间到来的日志进入下一个批次，由等待者中的一个接着刷，并发越高每次 force 覆盖的日志越多。
+ * 一个批次只属于一段，需要切换到下一段时先刷完当前批次。
+ * 读取时按窗口把文件读进读缓冲，nextRecord 返回的是读缓冲上的视图，顺序回放不再为每条日志分配数组。
+ * tail 返回的 LogTailer 只读 durable 之前的日志，读到末尾时在 flushed 上等待下一个批次落盘
  * @Date 2023/04/03/17:46
  */
 public class LoggerImpl implements Logger{
-    private static final int SEED = 13331;
+    static final int MAGIC = 0x4D59534C;
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 24;
 
-    private static final int OF_SIZE = 0;
-    private static final int OF_CHECKSUM = OF_SIZE + 4;
-    private static final int OF_DATA = OF_CHECKSUM + 4;
+    // [Magic] [SegmentSize] [BaseLsn]
+    private static final int OF_MAGIC = 0;
+    private static final int OF_SEGMENT_SIZE = OF_MAGIC + 4;
+    private static final int OF_BASE = OF_SEGMENT_SIZE + 4;
+    static final int HEADER_SIZE = OF_BASE + 8;
+
+    // [Size] [Checksum] [LSN] [Data]
+    static final int OF_SIZE = 0;
+    static final int OF_CHECKSUM = OF_SIZE + 4;
+    static final int OF_LSN = OF_CHECKSUM + 4;
+    static final int OF_DATA = OF_LSN + 8;
 
     public static final String LOG_SUFFIX = ".log";
+    // 批次缓冲区和读缓冲的大小，不超过段大小；放不下的单条日志按需扩大
+    private static final int BUFFER_SIZE = 1 << 20;
 
-    private RandomAccessFile raf;
-    private FileChannel fc;
+    private String path;
+    private long segmentSize;
     private Lock lock;
+    // 一个批次落盘后唤醒等待者
+    private Condition flushed;
+    // 现存的所有段，键为段号，值为打开的文件，尚未打开时为 null
+    private TreeMap<Long, FileChannel> segments;
 
     private long position;
-    private long fileSize;
-    private int xCheckSum;
+    // 已落盘的日志末尾，之前的日志都已 force
+    private long durable;
+    // 包含待写批次在内的日志末尾，即下一条日志的 LSN
+    private long tail;
+    // 尚未写入文件的日志，从 pendingLsn 开始首尾相接，直到 tail
+    private ByteBuffer pending;
+    private long pendingLsn;
+    // 刷盘期间由刷盘线程持有，刷完之后作为下一个批次的缓冲区
+    private ByteBuffer spare;
+    // 是否有线程正在刷盘
+    private boolean flushing;
+    private CRC32C crc;
+
+    private ReadWindow window;
+    private boolean closed;
+    // 不为 null 时不再需要的段移到这个名下
+    private volatile String archive;
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc) {
-        this.raf = raf;
-        this.fc = fc;
+    LoggerImpl(String path, long segmentSize) {
+        this.path = path;
+        this.segmentSize = segmentSize;
         this.lock = new ReentrantLock();
+        this.flushed = lock.newCondition();
+        this.segments = new TreeMap<>();
+        this.crc = new CRC32C();
     }
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc, int xCheckSum) {
-        this.raf = raf;
-        this.fc = fc;
-        this.lock = new ReentrantLock();
-        this.xCheckSum = xCheckSum;
+    // 段大小确定之后分配缓冲区
+    private void allocBuffers() {
+        int size = (int)Math.min(BUFFER_SIZE, segmentSize);
+        pending = ByteBuffer.allocateDirect(size);
+        spare = ByteBuffer.allocateDirect(size);
+        window = new ReadWindow(segmentSize, size);
     }
 
-    void init() {
-        long size = 0;
-        try {
-            size = raf.length();
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        if(size < 4) {
-            Panic.panic(Error.BadLogFileException);
-        }
+    static String segmentName(String path, long no) {
+        return String.format("%s%s.%06d", path, LOG_SUFFIX, no);
+    }
 
-        ByteBuffer buf = ByteBuffer.allocate(4);
-        try {
-            fc.position(0);
-            fc.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+    // 列出 path 现存的所有段号
+    static List<Long> listSegments(String path) {
+        File f = new File(path);
+        File dir = f.getAbsoluteFile().getParentFile();
+        String prefix = f.getName() + LOG_SUFFIX + ".";
+        List<Long> nos = new ArrayList<>();
+        String[] names = dir.list();
+        if(names == null) {
+            return nos;
+        }
+        for (String name : names) {
+            if(!name.startsWith(prefix)) continue;
+            String no = name.substring(prefix.length());
+            if(no.isEmpty() || !no.chars().allMatch(Character::isDigit)) continue;
+            nos.add(Long.parseLong(no));
         }
-        this.xCheckSum = Parser.parseInt(buf.array());
-        this.fileSize = size;
-        checkAndRemoveTail();
+        nos.sort(null);
+        return nos;
     }
 
-    private void checkAndRemoveTail() {
+    // 新建第 0 段
+    void initEmpty() {
+        allocBuffers();
+        segments.put(0L, createSegment(0));
+        durable = tail = HEADER_SIZE;
         rewind();
-        int xCheck = 0;
-        while(true) {
-            byte[] log = internNext();
-            if(log == null) break;
-            xCheck = calCheckSum(xCheck,log);
+    }
+
+    // 从第一段读出段大小，扫描最后一段找到日志末尾
+    void init() {
+        for (long no : listSegments(path)) {
+            segments.put(no, null);
         }
-        if(xCheck != xCheckSum) {
+        if(segments.isEmpty()) {
+            Panic.panic(Error.FileNotExistsException);
+        }
+        ByteBuffer header = readHeader(segments.firstKey());
+        if(header != null) {
+            segmentSize = header.getInt(OF_SEGMENT_SIZE);
+        } else if(segments.size() > 1) {
             Panic.panic(Error.BadLogFileException);
+        } else if(segmentSize == 0) {
+            segmentSize = DEFAULT_SEGMENT_SIZE;
+        }
+        allocBuffers();
+        long last = segments.lastKey();
+        if(readHeader(last) == null) {
+            // 切换段时崩溃，新段的段头没有写完
+            closeSegment(last);
+            deleteSegment(last);
+            segments.put(last, createSegment(last));
+        }
+        long pos = last * segmentSize + HEADER_SIZE;
+        while(true) {
+            ByteBuffer log = internNext(pos);
+            if(log == null) break;
+            pos += log.remaining();
         }
-
         try {
-            truncate(position);
-            raf.seek(position);
-        } catch (Exception e) {
+            FileChannel fc = segment(last);
+            if(fc.size() > pos - last * segmentSize) {
+                fc.truncate(pos - last * segmentSize);
+                fc.force(false);
+                window.invalidate();
+            }
+        } catch (IOException e) {
             Panic.panic(e);
         }
+        durable = tail = pos;
         rewind();
-
     }
 
-    private byte[] internNext() {
-        if(position + OF_DATA >= fileSize) {
+    // 段头正确时返回段头，否则返回 null
+    private ByteBuffer readHeader(long no) {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+        FileChannel fc = segment(no);
+        if(fc == null) {
             return null;
         }
-        ByteBuffer buf = ByteBuffer.allocate(4);
-        try {
-            fc.position(position);
-            fc.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+        read(fc, buf, 0);
+        if(buf.hasRemaining() || buf.getInt(OF_MAGIC) != MAGIC) {
+            return null;
         }
-        int size = Parser.parseInt(buf.array());
-        if(size + OF_DATA + position > fileSize) {
+        int size = buf.getInt(OF_SEGMENT_SIZE);
+        if(size <= HEADER_SIZE || (segmentSize != 0 && size != segmentSize) || buf.getLong(OF_BASE) != no * size) {
             return null;
         }
-        buf = ByteBuffer.allocate(OF_DATA + size);
+        return buf;
+    }
+
+    private FileChannel createSegment(long no) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(OF_MAGIC, MAGIC);
+        header.putInt(OF_SEGMENT_SIZE, (int)segmentSize);
+        header.putLong(OF_BASE, no * segmentSize);
+        FileChannel fc = null;
         try {
-            fc.position(position);
-            fc.read(buf);
+            fc = openChannel(new File(segmentName(path, no)).toPath(),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            while(header.hasRemaining()) {
+                fc.write(header, header.position());
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
-        byte[] log = buf.array();
-        int checkSum1 = Parser.parseInt(Arrays.copyOfRange(log,OF_CHECKSUM,OF_DATA));
-        int checkSum2 = calCheckSum(0, Arrays.copyOfRange(log,OF_DATA,log.length));
-        if(checkSum1 != checkSum2) {
+        return fc;
+    }
+
+    // 返回第 no 段的文件，段不存在时返回 null，调用时必须持有 lock 或者处于单线程的初始化阶段
+    private FileChannel segment(long no) {
+        if(!segments.containsKey(no)) {
             return null;
         }
-        position += log.length;
-        return log;
+        FileChannel fc = segments.get(no);
+        if(fc == null) {
+            try {
+                fc = openChannel(new File(segmentName(path, no)).toPath(),
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } catch (NoSuchFileException e) {
+                return null;
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            segments.put(no, fc);
+        }
+        return fc;
+    }
 
+    FileChannel openChannel(Path file, OpenOption... options) throws IOException {
+        return FileChannel.open(file, options);
+    }
 
+    private void closeSegment(long no) {
+        window.invalidate();
+        FileChannel fc = segments.remove(no);
+        if(fc != null) {
+            try {
+                fc.close();
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
     }
 
-    private int calCheckSum(int checkSum,byte[] data) {
-        for (byte b : data) {
-            checkSum = checkSum * SEED + b;
+    private void deleteSegment(long no) {
+        File f = new File(segmentName(path, no));
+        if(f.exists() && !f.delete()) {
+            Panic.panic(Error.FileCannotRWException);
         }
-        return checkSum;
     }
 
-    @Override
-    public void log(byte[] data) {
-        byte[] log = wrapLog(data);
-        lock.lock();
+    // 读出位于 pos 的一条完整日志，返回读缓冲上的视图，position 到 limit 为整条日志；段不存在或读到坏尾时返回 null
+    private ByteBuffer internNext(long pos) {
+        long no = pos / segmentSize;
+        return window.read(segment(no), no, pos - no * segmentSize);
+    }
+
+    static void read(FileChannel fc, ByteBuffer buf, long pos) {
         try {
-            fc.position(fc.size());
-            fc.write(ByteBuffer.wrap(log));
+            while(buf.hasRemaining()) {
+                if(fc.read(buf, pos + buf.position()) < 0) {
+                    break;
+                }
+            }
         } catch (IOException e) {
             Panic.panic(e);
+        }
+    }
+
+    // 校验 Size、LSN 和 Data，不包括 Checksum 本身，旧格式的单文件日志使用
+    static int crc(byte[] log) {
+        CRC32C crc = new CRC32C();
+        crc.update(log, OF_SIZE, 4);
+        crc.update(log, OF_LSN, log.length - OF_LSN);
+        return (int)crc.getValue();
+    }
+
+    // 日志头和 Data 直接写进待写批次，Checksum 在缓冲区上就地计算；返回时日志已经落盘
+    @Override
+    public long log(LogRecord record) {
+        int length = OF_DATA + record.size();
+        if(length > segmentSize - HEADER_SIZE) {
+            Panic.panic(Error.DataTooLargeException);
+        }
+        lock.lock();
+        try {
+            while(true) {
+                // tail 总是落在当前段内，恰好写满一段时等于下一段的起点
+                long no = (tail - 1) / segmentSize;
+                boolean nextSegment = tail + length > (no + 1) * segmentSize;
+                if(!nextSegment && pending.remaining() >= length) {
+                    break;
+                }
+                if(pending.position() == 0) {
+                    if(nextSegment) {
+                        segments.put(no + 1, createSegment(no + 1));
+                        tail = (no + 1) * segmentSize + HEADER_SIZE;
+                    } else {
+                        pending = ByteBuffer.allocateDirect(length);
+                    }
+                    continue;
+                }
+                // 切换段或者缓冲区放不下，先把当前批次刷掉
+                if(flushing) {
+                    flushed.awaitUninterruptibly();
+                } else {
+                    flushBatch();
+                }
+            }
+            long lsn = tail;
+            if(pending.position() == 0) {
+                pendingLsn = lsn;
+            }
+            append(record, lsn);
+            tail += length;
+            long end = tail;
+            while(durable < end) {
+                if(flushing) {
+                    flushed.awaitUninterruptibly();
+                } else {
+                    flushBatch();
+                }
+            }
+            return lsn;
         } finally {
             lock.unlock();
         }
-        updateXCheckSum(log);
     }
 
-    private void updateXCheckSum(byte[] log) {
-        xCheckSum = calCheckSum(xCheckSum, log);
-        lock.lock();
+    private void append(LogRecord record, long lsn) {
+        int start = pending.position();
+        pending.putInt(record.size());
+        pending.putInt(0);
+        pending.putLong(lsn);
+        record.writeTo(pending);
+        int end = pending.position();
+        if(end - start != OF_DATA + record.size()) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        crc.reset();
+        pending.limit(start + 4).position(start + OF_SIZE);
+        crc.update(pending);
+        pending.limit(end).position(start + OF_LSN);
+        crc.update(pending);
+        pending.limit(pending.capacity()).position(end);
+        pending.putInt(start + OF_CHECKSUM, (int)crc.getValue());
+    }
+
+    // 调用时必须持有 lock，写文件期间释放 lock，让其他线程继续追加下一个批次
+    // 批次只属于一段，前一个批次落盘之后才写下一个批次，恢复时不会看到前面缺失而后面存在的日志
+    private void flushBatch() {
+        flushing = true;
+        ByteBuffer batch = pending;
+        pending = spare;
+        spare = null;
+        long no = pendingLsn / segmentSize;
+        long offset = pendingLsn - no * segmentSize;
+        long end = tail;
+        FileChannel fc = segment(no);
+        lock.unlock();
         try {
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xCheckSum)));
+            batch.flip();
+            while(batch.hasRemaining()) {
+                fc.write(batch, offset + batch.position());
+            }
             fc.force(false);
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            lock.lock();
+            batch.clear();
+            spare = batch;
+            flushing = false;
+            durable = end;
+            flushed.signalAll();
         }
     }
 
-    private byte[] wrapLog(byte[] data) {
-        int length = data.length;
-        int checkSum = calCheckSum(0, data);
-        return Bytes.concat(Parser.int2Byte(length), Parser.int2Byte(checkSum), data);
+    @Override
+    public long nextLsn() {
+        lock.lock();
+        try {
+            return tail;
+        } finally {
+            lock.unlock();
+        }
     }
+
+    // 丢弃 x 之后的日志
     @Override
     public void truncate(long x) throws Exception {
         lock.lock();
         try {
-            fc.truncate(x);
+            long no = (x - 1) / segmentSize;
+            while(segments.lastKey() > no) {
+                long last = segments.lastKey();
+                closeSegment(last);
+                deleteSegment(last);
+            }
+            segment(no).truncate(x - no * segmentSize);
+            durable = tail = x;
+            // 读缓冲中可能还有被截掉的日志，之后同一位置会写入新的日志
+            window.invalidate();
         }finally {
             lock.unlock();
         }
     }
 
+    // 删除 lsn 所在段之前的所有段，正在写的段不会被删除；归档时移动文件可能跨文件系统复制，在锁外进行，
+    // 中途崩溃时段还留在原处，下次检查点会再移一次
     @Override
-    public byte[] next() {
+    public void truncateBefore(long lsn) {
+        String archive = this.archive;
+        List<Long> archived = new ArrayList<>();
         lock.lock();
         try {
-            byte[] log = internNext();
-            if(log == null) {
-                return null;
+            long no = Math.min(lsn / segmentSize, (tail - 1) / segmentSize);
+            while(segments.firstKey() < no) {
+                long first = segments.firstKey();
+                closeSegment(first);
+                if(archive == null) {
+                    deleteSegment(first);
+                } else {
+                    archived.add(first);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (long no : archived) {
+            try {
+                Files.move(new File(segmentName(path, no)).toPath(), new File(segmentName(archive, no)).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (NoSuchFileException e) {
+                // 上次崩溃前已经移走了
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    @Override
+    public void archive(String archive) {
+        this.archive = archive;
+    }
+
+    // 当前段读完时跳到下一段
+    @Override
+    public ByteBuffer nextRecord() {
+        lock.lock();
+        try {
+            while(true) {
+                ByteBuffer log = internNext(position);
+                if(log != null) {
+                    position += log.remaining();
+                    log.position(log.position() + OF_DATA);
+                    return log;
+                }
+                Long no = segments.higherKey(position / segmentSize);
+                if(no == null) {
+                    return null;
+                }
+                position = no * segmentSize + HEADER_SIZE;
             }
-            return Arrays.copyOfRange(log, OF_DATA, log.length);
         } finally {
             lock.unlock();
         }
     }
 
+    // 回到现存最早一段的第一条日志，较早的段已经在检查点之后删除
     @Override
     public void rewind() {
-        position = 4;
+        lock.lock();
+        try {
+            position = segments.firstKey() * segmentSize + HEADER_SIZE;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 读游标和 nextRecord、rewind 一样在 lock 下读写，不会与轮换段时的修改交错
+    @Override
+    public long position() {
+        lock.lock();
+        try {
+            return position;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void seek(long lsn) {
+        lock.lock();
+        try {
+            position = lsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isLegacy() {
+        return false;
+    }
+
+    @Override
+    public LogTailer tail(long lsn) {
+        return new Tailer(lsn);
+    }
+
+    @Override
+    public void backup(String path, long from, long to) throws Exception {
+        if(awaitDurable(to - 1, Long.MAX_VALUE) < to) {
+            // Logger 已关闭，剩下的日志不会再落盘
+            throw Error.BadLogFileException;
+        }
+        for(long no = from / segmentSize; no <= (to - 1) / segmentSize; no ++) {
+            long length = Math.min(segmentSize, to - no * segmentSize);
+            FileChannel src;
+            try {
+                src = openChannel(new File(segmentName(this.path, no)).toPath(), StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                throw Error.LogTruncatedException;
+            }
+            try (FileChannel dest = FileChannel.open(new File(segmentName(path, no)).toPath(),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                length = Math.min(length, src.size());
+                long pos = 0;
+                while(pos < length) {
+                    pos += src.transferTo(pos, length - pos, dest);
+                }
+                dest.force(false);
+            } finally {
+                src.close();
+            }
+        }
+    }
+
+    // 等到 position 之后有日志落盘，返回已落盘的日志末尾；超时或者 Logger 已关闭时返回的末尾不超过 position
+    private long awaitDurable(long position, long timeout) throws InterruptedException {
+        lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+            while(durable <= position && !closed && nanos > 0) {
+                nanos = flushed.awaitNanos(nanos);
+            }
+            return durable;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // durable 之前的日志不会再改变，读文件不需要持有 lock；段由自己打开，不受 truncateBefore 关闭文件的影响
+    private class Tailer implements LogTailer {
+        private long position;
+        private long lsn;
+        private ReadWindow tailWindow;
+        private long channelNo;
+        private FileChannel channel;
+
+        Tailer(long position) {
+            this.position = position;
+            this.tailWindow = new ReadWindow(segmentSize, (int)Math.min(BUFFER_SIZE, segmentSize));
+            this.channelNo = -1;
+        }
+
+        @Override
+        public ByteBuffer next(long timeout) throws Exception {
+            long deadline = System.currentTimeMillis() + timeout;
+            while(true) {
+                long end = awaitDurable(position, Math.max(0, deadline - System.currentTimeMillis()));
+                if(end <= position) {
+                    return null;
+                }
+                long no = position / segmentSize;
+                // 落在段头中，包括恰好写满上一段的情况，从该段的第一条日志开始
+                if(position < no * segmentSize + HEADER_SIZE) {
+                    position = no * segmentSize + HEADER_SIZE;
+                    continue;
+                }
+                ByteBuffer log = tailWindow.read(channel(no), no, position - no * segmentSize);
+                if(log != null) {
+                    lsn = position;
+                    position += log.remaining();
+                    log.position(log.position() + OF_DATA);
+                    return log;
+                }
+                // 已落盘的日志在当前段内却读不出来，日志文件损坏
+                if((end - 1) / segmentSize == no) {
+                    throw Error.BadLogFileException;
+                }
+                // 当前段读完，跳到下一段
+                position = (no + 1) * segmentSize + HEADER_SIZE;
+            }
+        }
+
+        private FileChannel channel(long no) throws Exception {
+            if(channelNo == no) {
+                return channel;
+            }
+            close();
+            try {
+                channel = openChannel(new File(segmentName(path, no)).toPath(), StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                throw Error.LogTruncatedException;
+            }
+            channelNo = no;
+            return channel;
+        }
+
+        @Override
+        public long lsn() {
+            return lsn;
+        }
+
+        @Override
+        public long position() {
+            return position;
+        }
+
+        @Override
+        public void close() {
+            if(channel == null) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            channel = null;
+            channelNo = -1;
+            tailWindow.invalidate();
+        }
     }
 
     @Override
     public void close() {
+        lock.lock();
         try {
-            fc.close();
-            raf.close();
+            closed = true;
+            flushed.signalAll();
+            for (FileChannel fc : segments.values()) {
+                if(fc != null) {
+                    fc.close();
+                }
+            }
+            segments.clear();
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            lock.unlock();
         }
     }
 }
@@ -0,0 +1,89 @@
+package top.wanjie.mysql.backend.dm.logger;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32C;
+
+/**
+ * @Author fraven
+ * @Description 分段日志上的读窗口：把一段文件读进读缓冲，在缓冲上解析、校验日志，返回读缓冲上的视图。
+ * 恢复时的顺序读和每个 LogTailer 各用一个窗口
+ * @Date 2023/05/18/21:06
+ */
+class ReadWindow {
+    private long segmentSize;
+    // 读缓冲中是第 no 段从 offset 开始的 length 个字节，no 为 -1 时缓冲无效
+    private ByteBuffer buf;
+    private long no;
+    private long offset;
+    private int length;
+    private CRC32C crc;
+
+    ReadWindow(long segmentSize, int size) {
+        this.segmentSize = segmentSize;
+        this.buf = ByteBuffer.allocate(size);
+        this.no = -1;
+        this.crc = new CRC32C();
+    }
+
+    // 缓冲中的内容已经过时，例如所在的段被截断或删除
+    void invalidate() {
+        no = -1;
+    }
+
+    // 读出第 no 段 offset 处的一条完整日志，position 到 limit 为整条日志；段不存在或读到坏尾时返回 null
+    // 读缓冲中的内容可能是在这条日志写入之前读的，校验不通过时从 offset 重新读一次
+    ByteBuffer read(FileChannel fc, long no, long offset) {
+        ByteBuffer log = parse(fc, no, offset);
+        if(log == null && (this.no != no || this.offset != offset)) {
+            load(fc, no, offset);
+            log = parse(fc, no, offset);
+        }
+        return log;
+    }
+
+    private void load(FileChannel fc, long no, long offset) {
+        this.no = -1;
+        this.length = 0;
+        if(fc == null) {
+            return;
+        }
+        buf.clear();
+        LoggerImpl.read(fc, buf, offset);
+        this.no = no;
+        this.offset = offset;
+        this.length = buf.position();
+    }
+
+    private ByteBuffer parse(FileChannel fc, long no, long offset) {
+        if(this.no != no || offset < this.offset || offset + LoggerImpl.OF_DATA > this.offset + length) {
+            return null;
+        }
+        int start = (int)(offset - this.offset);
+        buf.clear();
+        int dataSize = buf.getInt(start + LoggerImpl.OF_SIZE);
+        if(dataSize < 0 || offset + LoggerImpl.OF_DATA + dataSize > segmentSize) {
+            return null;
+        }
+        int end = start + LoggerImpl.OF_DATA + dataSize;
+        if(end > buf.capacity() && start == 0) {
+            // 单条日志比读缓冲还大
+            buf = ByteBuffer.allocate(end);
+            load(fc, no, offset);
+        }
+        if(end > length) {
+            return null;
+        }
+        buf.limit(start + 4).position(start + LoggerImpl.OF_SIZE);
+        crc.reset();
+        crc.update(buf);
+        buf.limit(end).position(start + LoggerImpl.OF_LSN);
+        crc.update(buf);
+        if(buf.getInt(start + LoggerImpl.OF_CHECKSUM) != (int)crc.getValue()
+                || buf.getLong(start + LoggerImpl.OF_LSN) != no * segmentSize + offset) {
+            return null;
+        }
+        buf.limit(end).position(start);
+        return buf;
+    }
+}
@@ -6,11 +6,17 @@ package top.wanjie.mysql.backend.dm.page;
  * @Date 2023/04/01/15:29
  */
 public interface Page {
+    // 独占锁，写回整个页面时持有
     void lock();
     void unlock();
+    // 共享锁，修改页面中的一部分（插入、更新 DataItem）时持有，保证页面不会在修改到一半、日志还没落盘时被写回
+    void rLock();
+    void rUnLock();
     void release();
     void setDirty(boolean dirty);
     boolean isDirty();
     int getPageNumber();
     byte[] getData();
+    // 页面中是否带有 PageLSN
+    boolean hasLsn();
 }
@@ -3,7 +3,8 @@ package top.wanjie.mysql.backend.dm.page;
 import top.wanjie.mysql.backend.dm.pageCache.PageCache;
 
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * @Author fraven
@@ -12,27 +13,43 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class PageImpl implements Page{
     private int pageNumber;
-    private boolean dirty;
+    private volatile boolean dirty;
     private byte[] data;
-    private Lock lock;
+    private Lock rlock;
+    private Lock wlock;
     private PageCache pc;
+    // 默认页面大小，数据库实际的页面大小在创建时选定并保存在第一页中
     public static final int PAGE_SIZE = 1 << 13;
+    public static final int MIN_PAGE_SIZE = 1 << 12;
+    public static final int MAX_PAGE_SIZE = 1 << 16;
 
     public PageImpl(int pageNumber, byte[] data, PageCache pc) {
         this.pageNumber = pageNumber;
         this.data = data;
         this.pc = pc;
-        lock = new ReentrantLock();
+        ReadWriteLock lock = new ReentrantReadWriteLock();
+        rlock = lock.readLock();
+        wlock = lock.writeLock();
     }
 
     @Override
     public void lock() {
-        lock.lock();
+        wlock.lock();
     }
 
     @Override
     public void unlock() {
-        lock.unlock();
+        wlock.unlock();
+    }
+
+    @Override
+    public void rLock() {
+        rlock.lock();
+    }
+
+    @Override
+    public void rUnLock() {
+        rlock.unlock();
     }
 
     @Override
@@ -59,4 +76,14 @@ public class PageImpl implements Page{
     public byte[] getData() {
         return data;
     }
+
+    @Override
+    public boolean hasLsn() {
+        return pc.hasPageLsn();
+    }
+
+    // 页面大小必须是 4KB 到 64KB 之间的 2 的幂
+    public static boolean isValidPageSize(int pageSize) {
+        return pageSize >= MIN_PAGE_SIZE && pageSize <= MAX_PAGE_SIZE && (pageSize & (pageSize - 1)) == 0;
+    }
 }
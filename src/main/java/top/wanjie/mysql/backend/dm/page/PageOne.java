@@ -1,5 +1,8 @@
 package top.wanjie.mysql.backend.dm.page;
 
+import top.wanjie.mysql.backend.common.Error;
+import top.wanjie.mysql.backend.utils.Panic;
+import top.wanjie.mysql.backend.utils.Parser;
 import top.wanjie.mysql.backend.utils.RandomUtil;
 
 import java.util.Arrays;
@@ -7,26 +10,63 @@ import java.util.Arrays;
 /**
  * @Author fraven
  * @Description 数据库第一个页面，用于校验数据库是否正常关闭，在数据库启动时校验100-107和108-115的字节数组是否相等，若不相等，则启动
- * 故障恢复功能
+ * 故障恢复功能。
+ * 开头保存文件格式版本和页面大小：[Version] [PageSize]，旧版本的文件这里全为 0，视为版本 0、页面大小 8KB
+ * 版本 2 起普通页的头部带有 PageLSN。
+ * 在线备份得到的页面文件在 [Version] [PageSize] 之后带有备份标记和备份结束时的日志末尾 [Backup] [BackupEnd]，
+ * 打开时按备份恢复，恢复完成后清除标记
  * @Date 2023/04/01/15:58
  */
 public class PageOne {
+    private static final int OF_VERSION = 0;
+    private static final int OF_PAGE_SIZE = 4;
+    // 读取页面大小时需要从文件开头读出的字节数
+    public static final int HEADER_SIZE = 8;
+    private static final int OF_BACKUP = OF_PAGE_SIZE + 4;
+    private static final int OF_BACKUP_END = OF_BACKUP + 1;
     private static final int OF_VC = 100;
     private static final int LEN_VC = 8;
-    private static final int PAGE_SIZE = 1 << 13;
+    public static final int FORMAT_VERSION = 2;
+    // 从这个版本开始普通页带有 PageLSN
+    private static final int PAGE_LSN_VERSION = 2;
 
-    public static byte[] initRaw() {
-        byte[] raw = new byte[PAGE_SIZE];
+    public static byte[] initRaw(int pageSize) {
+        byte[] raw = new byte[pageSize];
+        System.arraycopy(Parser.int2Byte(FORMAT_VERSION), 0, raw, OF_VERSION, 4);
+        System.arraycopy(Parser.int2Byte(pageSize), 0, raw, OF_PAGE_SIZE, 4);
         setVcOpen(raw);
         return raw;
     }
 
+    private static int parseVersion(byte[] header) {
+        return Parser.parseInt(Arrays.copyOfRange(header, OF_VERSION, OF_VERSION + 4));
+    }
+
+    // 从文件开头的 HEADER_SIZE 个字节解析出页面大小
+    public static int parsePageSize(byte[] header) {
+        int version = parseVersion(header);
+        if(version == 0) {
+            return PageImpl.PAGE_SIZE;
+        }
+        int pageSize = Parser.parseInt(Arrays.copyOfRange(header, OF_PAGE_SIZE, OF_PAGE_SIZE + 4));
+        if(version > FORMAT_VERSION || !PageImpl.isValidPageSize(pageSize)) {
+            Panic.panic(Error.BadDBFileException);
+        }
+        return pageSize;
+    }
+
+    // 该文件的普通页是否带有 PageLSN
+    public static boolean hasPageLsn(byte[] header) {
+        return parseVersion(header) >= PAGE_LSN_VERSION;
+    }
+
     private static void setVcOpen(byte[] raw) {
         System.arraycopy(RandomUtil.randomBytes(LEN_VC),0,raw,OF_VC,LEN_VC);
     }
 
     public static void setVcOpen(Page page) {
         setVcOpen(page.getData());
+        page.setDirty(true);
     }
 
     private static void setVcClose(byte[] raw) {
@@ -35,6 +75,29 @@ public class PageOne {
 
     public static void setVcClose(Page page) {
         setVcClose(page.getData());
+        page.setDirty(true);
+    }
+
+    // 标记为备份并记下备份的日志终点 end，同时让关闭校验不通过，打开时一定会恢复
+    public static void markBackup(byte[] raw, long end) {
+        raw[OF_BACKUP] = 1;
+        System.arraycopy(Parser.long2Byte(end), 0, raw, OF_BACKUP_END, 8);
+        setVcOpen(raw);
+        raw[OF_VC + LEN_VC] = (byte)~raw[OF_VC];
+    }
+
+    public static boolean isBackup(Page pg) {
+        return pg.getData()[OF_BACKUP] == 1;
+    }
+
+    // 恢复备份时至少要回放到这里，之前的日志才覆盖了模糊复制的页面上的全部修改
+    public static long backupEnd(Page pg) {
+        return Parser.parseLong(Arrays.copyOfRange(pg.getData(), OF_BACKUP_END, OF_BACKUP_END + 8));
+    }
+
+    public static void clearBackup(Page pg) {
+        pg.getData()[OF_BACKUP] = 0;
+        pg.setDirty(true);
     }
 
     public static boolean checkVc(Page pg) {
@@ -1,5 +1,6 @@
 package top.wanjie.mysql.backend.dm.page;
 
+import top.wanjie.mysql.backend.dm.dataItem.DataItem;
 import top.wanjie.mysql.backend.utils.Parser;
 
 import java.util.Arrays;
@@ -7,57 +8,212 @@ import java.util.Arrays;
 /**
  * @Author fraven
  * @Description 普通页，存放数据库数据
+ * [FSO] [PageLSN] [DataItem] [DataItem] ... DataItem 从页头之后开始首尾相接，沿着 DataSize 可以从头走到 FSO。
+ * PageLSN 是最后一条修改该页的日志的 LSN，恢复时不重做不比它新的日志；版本 2 之前的文件没有 PageLSN，DataItem 紧接着 FSO
+ * 被回收的 DataItem 成为空洞（ValidFlag 置 FREE 位），并与相邻的空洞合并；插入时先找放得下的空洞，找不到再追加到 FSO 处。
+ * uid 中保存的是页内偏移，已有的 DataItem 不能移动，所以页内只合并空洞而不做整理
  * @Date 2023/04/01/16:25
  */
 public class PageX {
     private static final short OF_FREE = 0;
-    private static final short OF_DATA = 2;
-    public static final int MAX_FREE_SPACE = PageImpl.PAGE_SIZE - OF_DATA;
+    private static final short OF_LSN = 2;
+    private static final int LEN_LSN = 8;
+    // DataItem 的头部 [ValidFlag] [DataSize]
+    public static final int ITEM_HEADER = 3;
+    // FSO 按无符号 16 位保存，64KB 的页面最后一个字节不可用
+    private static final int MAX_FSO = (1 << 16) - 1;
+
+    // 第一个 DataItem 的位置
+    private static int ofData(boolean hasLsn) {
+        return hasLsn ? OF_LSN + LEN_LSN : OF_LSN;
+    }
+
+    private static int ofData(Page pg) {
+        return ofData(pg.hasLsn());
+    }
 
-    public static byte[] initRaw() {
-        byte[] raw = new byte[PageImpl.PAGE_SIZE];
-        setFSO(raw,OF_DATA);
+    public static byte[] initRaw(int pageSize, boolean hasLsn) {
+        byte[] raw = new byte[pageSize];
+        setFSO(raw,ofData(hasLsn));
         return raw;
     }
 
-    private static void setFSO(byte[] raw,short fso) {
-        System.arraycopy(Parser.short2Byte(fso),0,raw,0,2);
+    // 空页面能容纳的最大数据
+    public static int maxFreeSpace(int pageSize, boolean hasLsn) {
+        return Math.min(pageSize, MAX_FSO) - ofData(hasLsn);
+    }
+
+    public static long getLsn(Page pg) {
+        if(!pg.hasLsn()) {
+            return 0;
+        }
+        return Parser.parseLong(Arrays.copyOfRange(pg.getData(), OF_LSN, OF_LSN + LEN_LSN));
+    }
+
+    // 修改页面并写下日志之后调用，PageLSN 只增不减。修改者只持有页面的共享锁，彼此之间用页面对象同步；
+    // 写回持有独占锁，写回的 PageLSN 不会超前于页面内容
+    public static void setLsn(Page pg, long lsn) {
+        if(!pg.hasLsn()) {
+            return;
+        }
+        synchronized (pg) {
+            if(lsn > getLsn(pg)) {
+                System.arraycopy(Parser.long2Byte(lsn), 0, pg.getData(), OF_LSN, LEN_LSN);
+            }
+        }
+    }
+
+    private static void setFSO(byte[] raw,int fso) {
+        System.arraycopy(Parser.short2Byte((short)fso),0,raw,0,2);
     }
 
-    public static short getFSO(Page pg) {
+    public static int getFSO(Page pg) {
         return getFSO(pg.getData());
     }
 
-    private static short getFSO(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
+    private static int getFSO(byte[] raw) {
+        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2)) & 0xFFFF;
     }
 
-    public static short insert(Page pg,byte[] raw) {
-        pg.setDirty(true);
-        short offset = getFSO(pg);
+    // 修改页面的方法都在修改完成之后才置脏，保证后台写回时清掉的脏标记不会漏掉正在进行的修改
+    public static int insert(Page pg,byte[] raw) {
+        int offset = getFSO(pg);
         System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
-        setFSO(pg.getData(), (short) (offset + raw.length));
+        setFSO(pg.getData(), offset + raw.length);
+        pg.setDirty(true);
         return offset;
     }
 
+    // 能插入的最大 DataItem：FSO 之后的空间，或者最大的空洞留出一个空洞头部之后的空间
     public static int getFreeSpage(Page pg) {
-        return PageImpl.PAGE_SIZE - getFSO(pg);
+        byte[] raw = pg.getData();
+        int fso = getFSO(raw);
+        int free = Math.min(raw.length, MAX_FSO) - fso;
+        for(int pos = ofData(pg); pos < fso; pos += itemLength(raw, pos)) {
+            if(isFree(raw, pos)) {
+                free = Math.max(free, itemLength(raw, pos) - ITEM_HEADER);
+            }
+        }
+        return free;
+    }
+
+    public static boolean canAppend(Page pg, int length) {
+        return Math.min(pg.getData().length, MAX_FSO) - getFSO(pg) >= length;
+    }
+
+    private static int itemLength(byte[] raw, int offset) {
+        return ITEM_HEADER + (((raw[offset + 1] & 0xFF) << 8) | (raw[offset + 2] & 0xFF));
+    }
+
+    private static boolean isFree(byte[] raw, int offset) {
+        return (raw[offset] & DataItem.FLAG_FREE) != 0;
+    }
+
+    // 空洞的头部沿用 flag 中的代数
+    private static byte[] holeHeader(byte flag, int length) {
+        byte[] header = new byte[ITEM_HEADER];
+        header[0] = (byte)((flag & (DataItem.GEN_MASK << DataItem.GEN_SHIFT)) | DataItem.FLAG_FREE);
+        System.arraycopy(Parser.short2Byte((short)(length - ITEM_HEADER)), 0, header, 1, 2);
+        return header;
+    }
+
+    // offset 是否是某个 DataItem 的起点。只走到 offset 为止、不读 FSO，与同时进行的追加插入互不影响
+    public static boolean isItem(Page pg, int offset) {
+        byte[] raw = pg.getData();
+        int pos = ofData(pg);
+        while(pos < offset && pos + ITEM_HEADER <= raw.length) {
+            pos += itemLength(raw, pos);
+        }
+        return pos == offset;
+    }
+
+    // 对页面中一段字节的改写
+    public static class Patch {
+        public int offset;
+        public byte[] raw;
+    }
+
+    // 复用空洞的位置：offset 处写入代数为 gen 的新 DataItem，空洞有剩余时由 rest 写入剩余空洞的头部
+    public static class Hole {
+        public int offset;
+        public int gen;
+        public Patch rest;
+    }
+
+    // 找第一个放得下 length 字节的空洞：恰好放满，或者剩下的空间还能放下一个空洞头部
+    public static Hole findHole(Page pg, int length) {
+        byte[] raw = pg.getData();
+        int fso = getFSO(raw);
+        for(int pos = ofData(pg); pos < fso; pos += itemLength(raw, pos)) {
+            int len = itemLength(raw, pos);
+            if(!isFree(raw, pos) || (len != length && len < length + ITEM_HEADER)) {
+                continue;
+            }
+            Hole hole = new Hole();
+            hole.offset = pos;
+            hole.gen = (DataItem.getGeneration(raw[pos]) + 1) & DataItem.GEN_MASK;
+            if(len > length) {
+                hole.rest = new Patch();
+                hole.rest.offset = pos + length;
+                hole.rest.raw = holeHeader(raw[pos], len - length);
+            }
+            return hole;
+        }
+        return null;
+    }
+
+    // 回收 offset 处的 DataItem：后面紧挨着的空洞合并进来，前面紧挨着空洞时并入前一个空洞。
+    // 只需要改写一个空洞头部，返回改写的内容，调用者写下日志之后再用 write 写入
+    public static Patch free(Page pg, int offset) {
+        byte[] raw = pg.getData();
+        int fso = getFSO(raw);
+        int prev = -1;
+        for(int pos = ofData(pg); pos < offset; pos += itemLength(raw, pos)) {
+            prev = pos;
+        }
+        int start = offset;
+        int end = offset + itemLength(raw, offset);
+        if(prev >= 0 && isFree(raw, prev)) {
+            start = prev;
+        }
+        if(end < fso && isFree(raw, end)) {
+            end += itemLength(raw, end);
+        }
+        Patch patch = new Patch();
+        patch.offset = start;
+        patch.raw = holeHeader(raw[start], end - start);
+        return patch;
     }
 
-    public static void recoverInsert(Page pg, short offset, byte[] raw) {
+    // 在页面中已有的位置上写入，不改变 FSO
+    public static void write(Page pg, int offset, byte[] raw) {
+        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
         pg.setDirty(true);
+    }
+
+    public static void recoverInsert(Page pg, int offset, byte[] raw) {
         System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
 
-        short fso = getFSO(pg);
+        int fso = getFSO(pg);
         if(fso < offset + raw.length) {
-            setFSO(pg.getData(), (short) (raw.length + offset));
+            setFSO(pg.getData(), raw.length + offset);
         }
+        pg.setDirty(true);
     }
 
-    public static void recoverUpdate(Page pg, short offset, byte[] raw) {
-        pg.setDirty(true);
+    public static void recoverUpdate(Page pg, int offset, byte[] raw) {
         System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        pg.setDirty(true);
+    }
 
+    // 新分配的页面在写回之前崩溃时，恢复后是全 0 的页面，需要重新初始化 FSO
+    public static boolean isInitialized(Page pg) {
+        return getFSO(pg) >= ofData(pg);
+    }
+
+    public static void init(Page pg) {
+        setFSO(pg.getData(), ofData(pg));
+        pg.setDirty(true);
     }
 
 
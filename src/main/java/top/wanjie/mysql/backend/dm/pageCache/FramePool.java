@@ -0,0 +1,43 @@
+package top.wanjie.mysql.backend.dm.pageCache;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @Author fraven
+ * @Description 页帧池，缓冲池中的每个页面占用一个页面大小的页帧，页面被淘汰后页帧归还复用。
+ * 页帧总数以缓冲池容量为上限，按需分配，缓冲池填满之后缺页不再分配新的数组
+ * @Date 2023/05/09/21:16
+ */
+class FramePool {
+    private final int pageSize;
+    private final ArrayBlockingQueue<byte[]> free;
+    // 已分配的页帧总数
+    private final AtomicInteger allocated;
+
+    FramePool(int capacity, int pageSize) {
+        this.pageSize = pageSize;
+        this.free = new ArrayBlockingQueue<>(capacity);
+        this.allocated = new AtomicInteger(0);
+    }
+
+    // 取出的页帧内容是上一个页面留下的，调用者负责整页覆盖
+    byte[] acquire() {
+        byte[] frame = free.poll();
+        if(frame == null) {
+            allocated.incrementAndGet();
+            frame = new byte[pageSize];
+        }
+        return frame;
+    }
+
+    void recycle(byte[] frame) {
+        if(!free.offer(frame)) {
+            allocated.decrementAndGet();
+        }
+    }
+
+    int allocated() {
+        return allocated.get();
+    }
+}
@@ -0,0 +1,112 @@
+package top.wanjie.mysql.backend.dm.pageCache;
+
+import top.wanjie.mysql.backend.utils.Panic;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * @Author fraven
+ * @Description 基于内存映射的页面缓存，.db 文件按 SEGMENT_SIZE 分段映射，页面的读取和写回只是一次内存拷贝，不需要系统调用。
+ * 这不是零拷贝：页面仍然拷贝进缓冲池自己的页帧，修改、加锁和写回都在页帧上进行，映射只省掉了读写文件的系统调用。
+ * 映射一段会把文件扩展到段的整数倍，正常关闭时截断回实际页数；崩溃后多出来的空白页由恢复过程截断
+ * @Date 2023/05/06/20:41
+ */
+public class MmapPageCacheImpl extends PageCacheImpl {
+    // 每段映射的大小，必须是页面大小的整数倍
+    static final long SEGMENT_SIZE = 1L << 26;
+    // 只增不减，增长时整体替换数组，读取不需要加锁
+    private volatile MappedByteBuffer[] segments;
+
+    MmapPageCacheImpl(RandomAccessFile raf, FileChannel fc, int maxResource, int pageSize, boolean pageLsn) {
+        super(raf, fc, maxResource, pageSize, pageLsn);
+        this.segments = new MappedByteBuffer[0];
+    }
+
+    // 返回定位到该页起始位置的视图，每次调用独立，多线程可以同时读写不同页面
+    private ByteBuffer slice(int pgno) {
+        long offset = pageOffset(pgno);
+        int idx = (int)(offset / SEGMENT_SIZE);
+        MappedByteBuffer[] segs = segments;
+        if(idx >= segs.length) {
+            segs = map(idx);
+        }
+        ByteBuffer buf = segs[idx].duplicate();
+        buf.position((int)(offset % SEGMENT_SIZE));
+        return buf;
+    }
+
+    private MappedByteBuffer[] map(int idx) {
+        fileLock.lock();
+        try {
+            MappedByteBuffer[] segs = segments;
+            if(idx < segs.length) {
+                return segs;
+            }
+            MappedByteBuffer[] grown = Arrays.copyOf(segs, idx + 1);
+            for(int i = segs.length; i <= idx; i++) {
+                grown[i] = fc.map(FileChannel.MapMode.READ_WRITE, i * SEGMENT_SIZE, SEGMENT_SIZE);
+            }
+            segments = grown;
+            return grown;
+        } catch (IOException e) {
+            Panic.panic(e);
+            return null;
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    @Override
+    void readPage(int pgno, byte[] data) {
+        slice(pgno).get(data);
+    }
+
+    @Override
+    void readPages(int pgno, ByteBuffer buf) {
+        while(buf.hasRemaining()) {
+            ByteBuffer page = slice(pgno ++);
+            page.limit(page.position() + Math.min(buf.remaining(), pageSize));
+            buf.put(page);
+        }
+    }
+
+    @Override
+    void writePage(int pgno, byte[] data) {
+        slice(pgno).put(data);
+    }
+
+    @Override
+    void force() {
+        for (MappedByteBuffer seg : segments) {
+            seg.force();
+        }
+    }
+
+    // 映射区域不能缩小，这里只丢弃多余的页号，文件在关闭时再截断
+    @Override
+    public void truncateByPageNo(int maxPageNo) {
+        fileLock.lock();
+        try {
+            pageNumbers.set(maxPageNo);
+            writtenPages = maxPageNo;
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    @Override
+    void closeFile() {
+        segments = new MappedByteBuffer[0];
+        try {
+            raf.setLength(pageOffset(pageNumbers.get() + 1));
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        super.closeFile();
+    }
+}
@@ -3,10 +3,12 @@ package top.wanjie.mysql.backend.dm.pageCache;
 import top.wanjie.mysql.backend.common.Error;
 import top.wanjie.mysql.backend.dm.page.Page;
 import top.wanjie.mysql.backend.dm.page.PageImpl;
+import top.wanjie.mysql.backend.dm.page.PageOne;
 import top.wanjie.mysql.backend.utils.Panic;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
 
@@ -16,17 +18,30 @@ import java.nio.channels.FileChannel;
  * @Date 2023/04/03/12:52
  */
 public interface PageCache {
+    // 默认页面大小
     public static final int PAGE_SIZE = 1 << 13;
 
     int newPage(byte[] initData);
-    Page getPage(int pageNo);
+    Page getPage(int pageNo) throws Exception;
     void close();
     void release(Page pg);
     void truncateByPageNo(int maxPageNo);
     int getPageNumber();
+    int getPageSize();
     void flushPage(Page pg);
+    void flushAll();
+    // 预读提示：异步把从 pgno 开始的 count 个页面读入缓冲池
+    void prefetch(int pgno, int count);
+    // 普通页是否带有 PageLSN，版本 2 之前的文件没有
+    boolean hasPageLsn();
+    // 把当前的全部页面复制成 path 的 .db 文件
+    void backup(String path);
 
     public static PageCache create(String path, long memory) {
+        return create(path, memory, PageImpl.PAGE_SIZE);
+    }
+
+    public static PageCache create(String path, long memory, int pageSize) {
         File f = new File(path + PageCacheImpl.DB_SUFFIX);
         try{
             if(!f.createNewFile()) {
@@ -47,10 +62,19 @@ public interface PageCache {
         } catch (FileNotFoundException e){
             Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory / PageImpl.PAGE_SIZE);
+        return new PageCacheImpl(raf, fc, (int)(memory / pageSize), pageSize, true);
     }
 
     public static PageCache open(String path, long memory) {
+        return open(path, memory, PageImpl.PAGE_SIZE, true, false);
+    }
+
+    public static PageCache open(String path, long memory, boolean mmap) {
+        return open(path, memory, PageImpl.PAGE_SIZE, true, mmap);
+    }
+
+    // mmap 为 true 时使用内存映射读写 .db 文件，页面仍然拷贝进缓冲池，不是零拷贝；pageSize 和 pageLsn 由第一页的头部决定
+    public static PageCache open(String path, long memory, int pageSize, boolean pageLsn, boolean mmap) {
         File f = new File(path + PageCacheImpl.DB_SUFFIX);
         if(!f.exists()) {
             Panic.panic(Error.FileNotExistsException);
@@ -67,6 +91,22 @@ public interface PageCache {
         } catch (FileNotFoundException e){
             Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory / PageImpl.PAGE_SIZE);
+        if(mmap) {
+            return new MmapPageCacheImpl(raf, fc, (int)(memory / pageSize), pageSize, pageLsn);
+        }
+        return new PageCacheImpl(raf, fc, (int)(memory / pageSize), pageSize, pageLsn);
+    }
+
+    // 读出第一页的头部，由 PageOne 解析出页面大小和文件格式，打开页面缓存之前调用
+    public static byte[] readHeader(String path) {
+        byte[] header = new byte[PageOne.HEADER_SIZE];
+        try (RandomAccessFile raf = new RandomAccessFile(path + PageCacheImpl.DB_SUFFIX, "r")) {
+            if(raf.length() >= header.length) {
+                raf.readFully(header);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return header;
     }
 }
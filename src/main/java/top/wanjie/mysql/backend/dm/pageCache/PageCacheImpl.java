@@ -6,28 +6,69 @@ import top.wanjie.mysql.backend.dm.page.Page;
 import top.wanjie.mysql.backend.dm.page.PageImpl;
 import top.wanjie.mysql.backend.utils.Panic;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @Author fraven
- * @Description 基于引用计数器的页面缓存，在将页面从磁盘读取到内存和从内存中刷新的磁盘时使用
+ * @Description 页面缓冲池，页面引用计数归零后仍驻留内存，缓冲池满时按 CLOCK 淘汰冷页面。
+ * 脏页由后台写线程按页号排序批量写回，每批只 force 一次；被淘汰的脏页直接写回但不 force，由下一批或检查点统一落盘。
+ * 页面数据放在 FramePool 的页帧中，淘汰后页帧归还复用，因此页面 release 之后不能再访问它的数据。
+ * 连续缺页时启动顺序预读，由后台线程用一次大的读取把后面 READ_AHEAD_PAGES 个页面装入缓冲池，
+ * 扫描读到预读窗口的第一页时发起下一个窗口；调用者也可以用 prefetch 显式提示
  * @Date 2023/04/03/14:24
  */
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
     private static final int MEM_MIN_LIM = 10;
+    // 后台写线程的刷盘间隔，毫秒
+    private static final long WRITER_INTERVAL = 1000;
+    // 每个预读窗口的最大页数，实际窗口不超过缓冲池的四分之一
+    static final int READ_AHEAD_PAGES = 32;
+    // 连续缺页达到该次数后启动顺序预读
+    private static final int SEQ_TRIGGER = 2;
     public static String DB_SUFFIX = ".db";
-    private RandomAccessFile raf;
-    private FileChannel fc;
-    private Lock fileLock;
-    private AtomicInteger pageNumbers;
+    RandomAccessFile raf;
+    FileChannel fc;
+    Lock fileLock;
+    AtomicInteger pageNumbers;
+    // 已经写进文件的页数，预读不越过这里：newPage 先分配页号再写文件，写完之前读到的是空页
+    volatile int writtenPages;
+    int pageSize;
+    private boolean pageLsn;
+    FramePool frames;
+    private Thread writer;
+    private CountDownLatch closing;
+    private int maxResource;
+    private int window;
+    private ThreadPoolExecutor readAhead;
+    // 预读线程复用的读缓冲
+    private ByteBuffer readAheadBuf;
+    private AtomicInteger lastMiss;
+    private AtomicInteger seqMisses;
+    // 访问到这一页时发起下一个预读窗口，0 表示没有进行中的顺序预读
+    private AtomicInteger readAheadMark;
+    private volatile int readAheadEnd;
 
     PageCacheImpl(RandomAccessFile raf, FileChannel fc, int maxResource) {
+        this(raf, fc, maxResource, PageImpl.PAGE_SIZE, true);
+    }
+
+    PageCacheImpl(RandomAccessFile raf, FileChannel fc, int maxResource, int pageSize, boolean pageLsn) {
         super(maxResource);
         if(maxResource < MEM_MIN_LIM) {
             Panic.panic(Error.MemTooSmallException);
@@ -41,44 +82,215 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
         this.raf = raf;
         this.fc = fc;
         this.fileLock = new ReentrantLock();
-        this.pageNumbers = new AtomicInteger((int)length / PageImpl.PAGE_SIZE);
-
+        this.pageSize = pageSize;
+        this.pageLsn = pageLsn;
+        this.pageNumbers = new AtomicInteger((int)(length / pageSize));
+        this.writtenPages = pageNumbers.get();
+        this.frames = new FramePool(maxResource, pageSize);
+        this.closing = new CountDownLatch(1);
+        this.writer = new Thread(this::writeLoop, "page-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        this.maxResource = maxResource;
+        this.window = Math.max(1, Math.min(READ_AHEAD_PAGES, maxResource / 4));
+        // 预读只是提示，队列满时直接丢弃
+        this.readAhead = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(4), r -> {
+                    Thread t = new Thread(r, "page-read-ahead");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.DiscardPolicy());
+        this.readAheadBuf = ByteBuffer.allocate(window * pageSize);
+        this.lastMiss = new AtomicInteger(-1);
+        this.seqMisses = new AtomicInteger(0);
+        this.readAheadMark = new AtomicInteger(0);
     }
+
+    // 新建页面会改变文件长度，与 truncateByPageNo 互斥
     @Override
     public int newPage(byte[] initData) {
-        int pgno = pageNumbers.incrementAndGet();
-        PageImpl page = new PageImpl(pgno, initData, null);
-        flush(page);
-        return pgno;
+        fileLock.lock();
+        try {
+            int pgno = pageNumbers.incrementAndGet();
+            writePage(pgno, initData);
+            writtenPages = pgno;
+            return pgno;
+        } finally {
+            fileLock.unlock();
+        }
     }
 
-    private void flush(Page page) {
-        int pgno = page.getPageNumber();
+    // 从文件中读出一页，使用定位读，不修改 channel 的位置，多个线程的读取可以并行
+    // 页帧是复用的，读到文件末尾时剩余部分清零
+    void readPage(int pgno, byte[] data) {
         long pageOffset = pageOffset(pgno);
-        fileLock.lock();
+        ByteBuffer buf = ByteBuffer.wrap(data);
         try {
-            fc.position(pageOffset);
-            fc.write(ByteBuffer.wrap(page.getData()));
-            fc.force(false);
+            while(buf.hasRemaining()) {
+                if(fc.read(buf, pageOffset + buf.position()) < 0) {
+                    Arrays.fill(data, buf.position(), data.length, (byte)0);
+                    break;
+                }
+            }
         } catch (IOException e) {
             Panic.panic(e);
+        }
+    }
+
+    // 一次读出从 pgno 开始的连续若干页，读到文件末尾时剩余部分清零
+    void readPages(int pgno, ByteBuffer buf) {
+        long offset = pageOffset(pgno);
+        try {
+            while(buf.hasRemaining()) {
+                if(fc.read(buf, offset + buf.position()) < 0) {
+                    while(buf.hasRemaining()) {
+                        buf.put((byte)0);
+                    }
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 写回一页，不 force，同样使用定位写
+    void writePage(int pgno, byte[] data) {
+        long pageOffset = pageOffset(pgno);
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        try {
+            while(buf.hasRemaining()) {
+                fc.write(buf, pageOffset + buf.position());
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 持有页面的独占锁写回脏页，保证写回时没有进行中的修改；先清脏标记再写，写期间的新修改会让页面重新变脏
+    private void writeIfDirty(Page pg) {
+        pg.lock();
+        try {
+            if(pg.isDirty()) {
+                pg.setDirty(false);
+                writePage(pg.getPageNumber(), pg.getData());
+            }
         } finally {
-            fileLock.unlock();
+            pg.unlock();
+        }
+    }
+
+    void force() {
+        try {
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 不能用 interrupt 停止写线程，中断会关闭正在读写的 FileChannel
+    private void writeLoop() {
+        try {
+            while(!closing.await(WRITER_INTERVAL, TimeUnit.MILLISECONDS)) {
+                flushAll();
+            }
+        } catch (InterruptedException e) {
+            Panic.panic(e);
         }
     }
 
-    private static long pageOffset(int pgno) {
-        return (pgno - 1) * PageImpl.PAGE_SIZE;
+    long pageOffset(int pgno) {
+        return (long)(pgno - 1) * pageSize;
     }
 
     @Override
-    public Page getPage(int pageNo) {
+    public Page getPage(int pageNo) throws Exception {
+        // 顺序扫描读到了上一个预读窗口的第一页，提前发起下一个窗口
+        if(pageNo == readAheadMark.get() && readAheadMark.compareAndSet(pageNo, 0)) {
+            startWindow(readAheadEnd + 1);
+        }
         return get(pageNo);
     }
 
+    // 连续缺页时启动顺序预读
+    private void detectSequential(int pgno) {
+        int last = lastMiss.getAndSet(pgno);
+        if(pgno != last + 1) {
+            seqMisses.set(0);
+            return;
+        }
+        if(seqMisses.incrementAndGet() >= SEQ_TRIGGER && pgno > readAheadEnd) {
+            seqMisses.set(0);
+            startWindow(pgno + 1);
+        }
+    }
+
+    private void startWindow(int first) {
+        int last = Math.min(first + window - 1, writtenPages);
+        if(last < first) {
+            return;
+        }
+        readAheadEnd = last;
+        readAheadMark.set(first);
+        readAhead.execute(() -> readAhead(first, last));
+    }
+
+    // 预读提示，总量不超过缓冲池的一半，避免把正在使用的页面挤出去
+    @Override
+    public void prefetch(int pgno, int count) {
+        int last = Math.min(pgno + Math.min(count, maxResource / 2) - 1, writtenPages);
+        for(int first = pgno; first <= last; first += window) {
+            int f = first, l = Math.min(first + window - 1, last);
+            readAhead.execute(() -> readAhead(f, l));
+        }
+    }
+
+    // 先为缓冲池中没有的页面占位，再用一次读取读出占位的区间；占位期间访问这些页面的线程会等待预读完成
+    private void readAhead(int first, int last) {
+        boolean[] claimed = new boolean[last - first + 1];
+        int lo = -1, hi = -1;
+        for(int pgno = first; pgno <= last; pgno ++) {
+            if(claim(pgno)) {
+                claimed[pgno - first] = true;
+                if(lo < 0) lo = pgno;
+                hi = pgno;
+            }
+        }
+        if(lo < 0) {
+            return;
+        }
+        ByteBuffer buf = readAheadBuf;
+        buf.clear();
+        buf.limit((hi - lo + 1) * pageSize);
+        readPages(lo, buf);
+        for(int pgno = lo; pgno <= hi; pgno ++) {
+            if(!claimed[pgno - first]) {
+                continue;
+            }
+            byte[] frame = frames.acquire();
+            buf.position((pgno - lo) * pageSize);
+            buf.get(frame);
+            fill(pgno, new PageImpl(pgno, frame, this));
+        }
+    }
+
 
     @Override
     public void close() {
+        readAhead.shutdown();
+        closing.countDown();
+        try {
+            readAhead.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            writer.join();
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+        super.close();
+        force();
+        closeFile();
+    }
+
+    void closeFile() {
         try {
             fc.close();
             raf.close();
@@ -90,26 +302,16 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
     @Override
     protected Page getForCache(long key) throws Exception {
         int pgno = (int)key;
-        long pageOffset = pageOffset(pgno);
-        ByteBuffer buf = ByteBuffer.wrap(new byte[PageImpl.PAGE_SIZE]);
-        fileLock.lock();
-        try {
-            fc.position(pageOffset);
-            fc.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
-        } finally {
-            fileLock.unlock();
-        }
-        return new PageImpl(pgno, buf.array(), this);
+        detectSequential(pgno);
+        byte[] data = frames.acquire();
+        readPage(pgno, data);
+        return new PageImpl(pgno, data, this);
     }
 
     @Override
     protected void releaseForCache(Page pg) {
-        if(pg.isDirty()) {
-            flush(pg);
-            pg.setDirty(false);
-        }
+        writeIfDirty(pg);
+        frames.recycle(pg.getData());
     }
 
     @Override
@@ -120,12 +322,16 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
     @Override
     public void truncateByPageNo(int maxPageNo) {
         long size = pageOffset(maxPageNo + 1);
+        fileLock.lock();
         try {
             raf.setLength(size);
+            pageNumbers.set(maxPageNo);
+            writtenPages = maxPageNo;
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            fileLock.unlock();
         }
-        pageNumbers.set(maxPageNo);
     }
 
     @Override
@@ -133,8 +339,62 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
         return pageNumbers.intValue();
     }
 
+    @Override
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    @Override
+    public boolean hasPageLsn() {
+        return pageLsn;
+    }
+
     @Override
     public void flushPage(Page pg) {
-        flush(pg);
+        pg.lock();
+        try {
+            pg.setDirty(false);
+            writePage(pg.getPageNumber(), pg.getData());
+        } finally {
+            pg.unlock();
+        }
+        force();
+    }
+
+    // 直接从文件复制，不加锁也不经过缓冲池，复制期间脏页照常写回，得到的是一份模糊的副本：
+    // 每一页可能是复制期间任意时刻的内容，甚至是写了一半的页面，需要用复制开始之前的检查点之后的日志重做才能一致
+    @Override
+    public void backup(String path) {
+        long size = pageOffset(pageNumbers.get() + 1);
+        try (FileChannel dest = FileChannel.open(new File(path + DB_SUFFIX).toPath(),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long pos = 0;
+            while(pos < size) {
+                long n = fc.transferTo(pos, size - pos, dest);
+                if(n <= 0) {
+                    break;
+                }
+                pos += n;
+            }
+            dest.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 把当前所有脏页按页号排序后写回，最后 force 一次
+    @Override
+    public void flushAll() {
+        List<Page> dirty = new ArrayList<>();
+        for (Page pg : cached()) {
+            if(pg.isDirty()) {
+                dirty.add(pg);
+            }
+        }
+        dirty.sort(Comparator.comparingInt(Page::getPageNumber));
+        for (Page pg : dirty) {
+            writeIfDirty(pg);
+        }
+        force();
     }
 }
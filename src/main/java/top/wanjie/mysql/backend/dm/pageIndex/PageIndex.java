@@ -1,55 +1,95 @@
 package top.wanjie.mysql.backend.dm.pageIndex;
 
-import top.wanjie.mysql.backend.dm.page.PageImpl;
-import top.wanjie.mysql.backend.dm.pageCache.PageCacheImpl;
-
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @Author fraven
- * @Description 帮助挑选一个合适的页面进行插入，统计每个页面的剩余空闲大小，将每个页面大小分为40份
+ * @Description 帮助挑选一个合适的页面进行插入，统计每个页面的剩余空闲大小，将每个页面大小分为40份。
+ * 被选出的页面在插入完成、重新 add 之前不在索引中；回收空间时用 update 更新页面的空闲大小，
+ * 页面正被插入时先记下来，等它被 add 回来时取两者中较大的一个
  * @Date 2023/04/03/16:43
  */
 public class PageIndex {
     private static final int INTERVALS_NO = 40;
-    private static final int THRESHOLD = PageImpl.PAGE_SIZE / INTERVALS_NO;
 
+    private int threshold;
     private Lock lock;
-    private List<PageInfo>[] lists;
+    private Set<PageInfo>[] lists;
+    // 在索引中的页面
+    private Map<Integer, PageInfo> listed;
+    // 被选出期间回收出来的空闲大小
+    private Map<Integer, Integer> pending;
 
-    public PageIndex(){
+    public PageIndex(int pageSize){
+        threshold = pageSize / INTERVALS_NO;
         lock = new ReentrantLock();
-        lists = new List[INTERVALS_NO + 1];
+        lists = new Set[INTERVALS_NO + 1];
         for(int i = 0;i < INTERVALS_NO + 1;i++) {
-            lists[i] = new ArrayList<>();
+            lists[i] = new LinkedHashSet<>();
         }
+        listed = new HashMap<>();
+        pending = new HashMap<>();
     }
 
     public void add(int pageNo,int freeSpace) {
         lock.lock();
         try {
-            int number = freeSpace / THRESHOLD;
-            number = Math.min(INTERVALS_NO,number);
-            lists[number].add(new PageInfo(pageNo,freeSpace));
+            Integer reclaimed = pending.remove(pageNo);
+            if(reclaimed != null) {
+                freeSpace = Math.max(freeSpace, reclaimed);
+            }
+            put(pageNo, freeSpace);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void update(int pageNo, int freeSpace) {
+        lock.lock();
+        try {
+            PageInfo pi = listed.get(pageNo);
+            if(pi == null) {
+                pending.merge(pageNo, freeSpace, Math::max);
+                return;
+            }
+            lists[bucket(pi.freeSpace)].remove(pi);
+            put(pageNo, freeSpace);
         } finally {
             lock.unlock();
         }
     }
 
+    private void put(int pageNo, int freeSpace) {
+        PageInfo pi = new PageInfo(pageNo, freeSpace);
+        lists[bucket(freeSpace)].add(pi);
+        listed.put(pageNo, pi);
+    }
+
+    private int bucket(int freeSpace) {
+        return Math.min(INTERVALS_NO, freeSpace / threshold);
+    }
+
     public PageInfo select(int spaceSize) {
         lock.lock();
         try {
-            int num = spaceSize / THRESHOLD;
+            int num = spaceSize / threshold;
             if(num < INTERVALS_NO) num++;
             while(num <= INTERVALS_NO) {
                 if(lists[num].size() == 0) {
                     num++;
                     continue;
                 }
-                return lists[num].remove(0);
+                Iterator<PageInfo> it = lists[num].iterator();
+                PageInfo pi = it.next();
+                it.remove();
+                listed.remove(pi.pgno, pi);
+                return pi;
             }
             return null;
         } finally {
@@ -8,6 +8,7 @@ import top.wanjie.mysql.backend.utils.Parser;
 import top.wanjie.mysql.backend.im.Node.SearchNextRes;
 import top.wanjie.mysql.backend.im.Node.LeafSearchRangeRes;
 import top.wanjie.mysql.backend.im.Node.InsertAndSplitRes;
+import top.wanjie.mysql.backend.im.Node.LeafDeleteRes;
 
 import javax.xml.crypto.Data;
 import java.util.ArrayList;
@@ -23,13 +24,15 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class BPlusTree {
     DataManager dm;
+    // 节点的平衡因子，由页面大小决定
+    int balance;
     long bootUid;
     // data为rootUid
     DataItem bootDataItem;
     Lock bootLock;
 
     public static long create(DataManager dm) throws Exception{
-        byte[] rawRoot = Node.newNilRootRaw();
+        byte[] rawRoot = Node.newNilRootRaw(Node.balance(dm.getPageSize()));
         long rootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rawRoot);
         long bootUid = dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(rootUid));
         return bootUid;
@@ -40,6 +43,7 @@ public class BPlusTree {
         assert bootDataItem != null;
         BPlusTree t = new BPlusTree();
         t.dm = dm;
+        t.balance = Node.balance(dm.getPageSize());
         t.bootDataItem = bootDataItem;
         t.bootUid = bootUid;
         t.bootLock = new ReentrantLock();
@@ -59,7 +63,7 @@ public class BPlusTree {
     private void updateRootUid(long left, long right, long rightKey) throws Exception{
         bootLock.lock();
         try {
-            byte[] newRootRaw = Node.newRootRaw(left, right, rightKey);
+            byte[] newRootRaw = Node.newRootRaw(balance, left, right, rightKey);
             long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, newRootRaw);
             bootDataItem.before();
             SubArray bdiData = bootDataItem.data();
@@ -70,6 +74,8 @@ public class BPlusTree {
         }
     }
 
+    // 返回可能含有 key 的最左边的叶子：分裂时相同的 key 可能留在左右两个节点中，
+    // 而 searchNext 把等于分隔 key 的查找导向右边，所以按 key - 1 查找，再由调用者沿兄弟节点向右
     private long searchLeaf(long nodeUid, long key) throws Exception{
         Node node = Node.loadNode(this, nodeUid);
         System.out.println(node);
@@ -79,7 +85,7 @@ public class BPlusTree {
         if(isLeaf) {
             return nodeUid;
         } else {
-            long next = searchNext(nodeUid, key);
+            long next = searchNext(nodeUid, key == Long.MIN_VALUE ? key : key - 1);
             return searchLeaf(next, key);
         }
     }
@@ -148,11 +154,12 @@ public class BPlusTree {
         return res;
     }
 
+    // 插入的 key 比节点中所有 key 都大时节点返回兄弟节点，到兄弟节点中重试
     private InsertRes insertAndSplit(long nodeUid, long uid, long key) throws Exception{
-        Node node = Node.loadNode(this, nodeUid);
-        InsertAndSplitRes res = node.insertAndSplit(uid, key);
-        node.release();
         while(true) {
+            Node node = Node.loadNode(this, nodeUid);
+            InsertAndSplitRes res = node.insertAndSplit(uid, key);
+            node.release();
             if(res.siblingUid != 0) {
                 nodeUid = res.siblingUid;
             }else{
@@ -164,6 +171,20 @@ public class BPlusTree {
         }
     }
 
+    // 删除 (key, uid)，找到并删除时返回 true
+    public boolean delete(long key, long uid) throws Exception{
+        long leafUid = searchLeaf(rootUid(), key);
+        while(true) {
+            Node leaf = Node.loadNode(this, leafUid);
+            LeafDeleteRes res = leaf.leafDelete(uid, key);
+            leaf.release();
+            if(res.siblingUid == 0) {
+                return res.deleted;
+            }
+            leafUid = res.siblingUid;
+        }
+    }
+
     public void close() {
         bootDataItem.release();
     }
@@ -8,6 +8,7 @@ package top.wanjie.mysql.backend.im;
 
 import top.wanjie.mysql.backend.common.SubArray;
 import top.wanjie.mysql.backend.dm.dataItem.DataItem;
+import top.wanjie.mysql.backend.dm.pageCache.PageCache;
 import top.wanjie.mysql.backend.tm.TransactionManagerImpl;
 import top.wanjie.mysql.backend.utils.Parser;
 
@@ -25,8 +26,17 @@ public class Node {
     static final int NO_KEYS_OFFSET = 1;
     static final int SIBLING_OFFSET = 3;
     static final int NODE_HEADER_SIZE = 11;
+    // 8KB 页面下的平衡因子，其他页面大小按比例缩放
     static final int BALANCE_NUMBER = 32;
-    static final int NODE_SIZE = NODE_HEADER_SIZE + (2 * 8) * (BALANCE_NUMBER * 2 + 2);
+
+    // 节点最多有 2 * balance 个关键字，分裂前还要多容纳一个
+    static int balance(int pageSize) {
+        return BALANCE_NUMBER * pageSize / PageCache.PAGE_SIZE;
+    }
+
+    static int nodeSize(int balance) {
+        return NODE_HEADER_SIZE + (2 * 8) * (balance * 2 + 2);
+    }
 
     BPlusTree bPlusTree;
     DataItem dataItem;
@@ -89,14 +99,15 @@ public class Node {
 
     static void shiftRawKth(SubArray raw,int kth) {
         int begin = raw.start + NODE_HEADER_SIZE + (kth + 1) * 2 * 8;
-        int end = raw.start + NODE_SIZE - 1;
+        int end = raw.end - 1;
         for(int i = end;i >= begin;i--) {
             raw.raw[i] = raw.raw[i - 2 * 8];
         }
     }
 
-    static byte[] newRootRaw(long left, long right, long rightKey) {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    static byte[] newRootRaw(int balance, long left, long right, long rightKey) {
+        int size = nodeSize(balance);
+        SubArray raw = new SubArray(new byte[size], 0, size);
         setRawIsLeaf(raw,false);
         setRawNoKeys(raw,2);
         setRawSibling(raw, 0);
@@ -108,8 +119,9 @@ public class Node {
         return raw.raw;
     }
 
-    static byte[] newNilRootRaw() {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    static byte[] newNilRootRaw(int balance) {
+        int size = nodeSize(balance);
+        SubArray raw = new SubArray(new byte[size], 0, size);
         setRawIsLeaf(raw,true);
         setRawNoKeys(raw,0);
         setRawSibling(raw, 0);
@@ -203,38 +215,41 @@ public class Node {
         }
     }
 
-    class InsertAndSplitRes {
+    class LeafDeleteRes {
+        boolean deleted;
         long siblingUid;
-        long newKey;
-        long newSon;
     }
 
-    public InsertAndSplitRes insertAndSplit(long uid, long key) throws Exception{
-        boolean success = false;
-        Exception err = null;
-        InsertAndSplitRes res = new InsertAndSplitRes();
+    // 从叶子节点中删除 (key, uid)，只移除这一项而不合并节点，空的叶子节点在查找和插入时会被跳过。
+    // 相同的 key 可能延续到兄弟节点，走到末尾还没有遇到更大的 key 时返回兄弟节点继续查找
+    public LeafDeleteRes leafDelete(long uid, long key) {
+        LeafDeleteRes res = new LeafDeleteRes();
         dataItem.before();
         try {
-            success = insert(uid, key);
-            if(!success) {
-                res.siblingUid = getRawSibling(raw);
-                return res;
-            }
-            if(needSplit()) {
-                try {
-                    SplitRes splitRes = split();
-                    res.newKey = splitRes.newKey;
-                    res.newSon = splitRes.newSon;
+            int noKeys = getRawNoKeys(raw);
+            int kth = 0;
+            while(kth < noKeys) {
+                long ik = getRawKthKey(raw, kth);
+                if(ik > key) {
                     return res;
-                } catch (Exception e){
-                    err = e;
-                    throw e;
                 }
-
+                if(ik == key && getRawKthSon(raw, kth) == uid) {
+                    break;
+                }
+                kth++;
+            }
+            if(kth == noKeys) {
+                res.siblingUid = getRawSibling(raw);
+                return res;
             }
+            int begin = raw.start + NODE_HEADER_SIZE + kth * 2 * 8;
+            int end = raw.start + NODE_HEADER_SIZE + noKeys * 2 * 8;
+            System.arraycopy(raw.raw, begin + 2 * 8, raw.raw, begin, end - begin - 2 * 8);
+            setRawNoKeys(raw, noKeys - 1);
+            res.deleted = true;
             return res;
         } finally {
-            if(success && err == null) {
+            if(res.deleted) {
                 dataItem.after(TransactionManagerImpl.SUPER_XID);
             } else {
                 dataItem.unBefore();
@@ -242,6 +257,63 @@ public class Node {
         }
     }
 
+    class InsertAndSplitRes {
+        long siblingUid;
+        long newKey;
+        long newSon;
+    }
+
+    // 分裂出的新节点不能在 before 和 after 之间插入：插入可能等待另一页的独占锁，两个同时分裂的线程
+    // 会各自持有本页的共享锁互相等待。需要分裂时先撤销修改，放开锁之后按算出的内容插入新节点，
+    // 再重新插入；分裂出的内容没有变化时直接链上新节点，变化了就回收它重来
+    public InsertAndSplitRes insertAndSplit(long uid, long key) throws Exception{
+        long son = 0;
+        byte[] sonRaw = null;
+        try {
+            while(true) {
+                InsertAndSplitRes res = new InsertAndSplitRes();
+                boolean success = false;
+                byte[] newRaw = null;
+                dataItem.before();
+                try {
+                    if(!insert(uid, key)) {
+                        res.siblingUid = getRawSibling(raw);
+                        return res;
+                    }
+                    if(!needSplit()) {
+                        success = true;
+                        return res;
+                    }
+                    newRaw = splitRaw();
+                    if(son != 0 && Arrays.equals(newRaw, sonRaw)) {
+                        setRawNoKeys(raw, bPlusTree.balance);
+                        setRawSibling(raw, son);
+                        success = true;
+                        res.newKey = getRawKthKey(new SubArray(newRaw, 0, newRaw.length), 0);
+                        res.newSon = son;
+                        son = 0;
+                        return res;
+                    }
+                } finally {
+                    if(success) {
+                        dataItem.after(TransactionManagerImpl.SUPER_XID);
+                    } else {
+                        dataItem.unBefore();
+                    }
+                }
+                if(son != 0) {
+                    freeNode(son);
+                }
+                son = bPlusTree.dm.insert(TransactionManagerImpl.SUPER_XID, newRaw);
+                sonRaw = newRaw;
+            }
+        } finally {
+            if(son != 0) {
+                freeNode(son);
+            }
+        }
+    }
+
     private boolean insert(long uid,long key) {
         int noKeys = getRawNoKeys(raw);
         int kth = 0;
@@ -272,30 +344,25 @@ public class Node {
     }
 
     private boolean needSplit() {
-        return BALANCE_NUMBER*2 == getRawNoKeys(raw);
+        return bPlusTree.balance*2 == getRawNoKeys(raw);
     }
 
-    class SplitRes {
-        long newSon, newKey;
-    }
-
-    private SplitRes split() throws Exception {
-        SubArray newraw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
-        setRawNoKeys(newraw, BALANCE_NUMBER);
+    // 分裂出的右半个节点
+    private byte[] splitRaw() {
+        int balance = bPlusTree.balance;
+        int size = nodeSize(balance);
+        SubArray newraw = new SubArray(new byte[size], 0, size);
+        setRawNoKeys(newraw, balance);
         setRawIsLeaf(newraw, getRawIfLeaf(raw));
         setRawSibling(newraw, getRawSibling(raw));
-        copyRawFromKth(raw, newraw, BALANCE_NUMBER);
-
-        long son = bPlusTree.dm.insert(TransactionManagerImpl.SUPER_XID, newraw.raw);
-        setRawNoKeys(raw, BALANCE_NUMBER);
-        setRawSibling(raw, son);
-
-        SplitRes res = new SplitRes();
-        res.newKey = getRawKthKey(newraw , 0);
-        res.newSon = son;
-        return res;
+        copyRawFromKth(raw, newraw, balance);
+        return newraw.raw;
     }
 
+    // 没有链进树中的节点没有别人引用，直接回收
+    private void freeNode(long uid) throws Exception {
+        bPlusTree.dm.free(bPlusTree.dm.read(uid));
+    }
 
     @Override
     public String toString() {
@@ -52,6 +52,9 @@ public class Parser {
                 case "show":
                     stat = parseShow(tokenizer);
                     break;
+                case "backup":
+                    stat = parseBackup(tokenizer);
+                    break;
                 default:
                     throw Error.InvalidCommandException;
             }
@@ -275,6 +278,18 @@ public class Parser {
         return ("and".equals(op) || "or".equals(op));
     }
 
+    private static Backup parseBackup(Tokenizer tokenizer) throws Exception {
+        String path = tokenizer.peek();
+        if("".equals(path)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        Backup backup = new Backup();
+        backup.path = path;
+        return backup;
+    }
+
     private static Drop parseDrop(Tokenizer tokenizer) throws Exception {
         if(!"table".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
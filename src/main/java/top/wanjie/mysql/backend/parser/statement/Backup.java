@@ -0,0 +1,10 @@
+package top.wanjie.mysql.backend.parser.statement;
+
+/**
+ * @Author fraven
+ * @Description backup 'path'，在线备份到 path
+ * @Date 2023/05/20/15:12
+ */
+public class Backup {
+    public String path;
+}
@@ -47,6 +47,9 @@ public class Executor {
             byte[] res = tbm.abort(xid);
             xid = 0;
             return res;
+        } else if(Backup.class.isInstance(stat)) {
+            // 备份与事务无关，不需要开启临时事务
+            return tbm.backup((Backup)stat);
         } else {
             return execute2(stat);
         }
@@ -68,6 +68,18 @@ public class Booter {
         return buf;
     }
 
+    // 复制出 path 的启动文件，update 用改名替换文件，复制到的总是一个完整的版本
+    public void backup(String path) throws Exception {
+        File dest = new File(path+BOOTER_SUFFIX);
+        if(dest.exists()) {
+            throw Error.FileExistsException;
+        }
+        try(FileOutputStream out = new FileOutputStream(dest)) {
+            out.write(load());
+            out.getFD().sync();
+        }
+    }
+
     public void update(byte[] data) {
         File tmp = new File(path + BOOTER_TMP_SUFFIX);
         try {
@@ -108,6 +108,11 @@ public class Field {
         bptree.insert(uKey, uid);
     }
 
+    public boolean delete(Object key, long uid) throws Exception {
+        long uKey = value2Key(key);
+        return bptree.delete(uKey, uid);
+    }
+
     public List<Long> search(long left, long right) throws Exception {
         return bptree.searchRange(left, right);
     }
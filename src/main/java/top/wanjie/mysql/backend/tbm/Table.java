@@ -15,6 +15,7 @@ import top.wanjie.mysql.backend.utils.ParseStringRes;
 import top.wanjie.mysql.backend.utils.Parser;
 import top.wanjie.mysql.backend.tbm.Field.FieldCalRes;
 import top.wanjie.mysql.backend.tbm.Field.ParseValueRes;
+import top.wanjie.mysql.backend.vm.VersionManager;
 
 import java.util.*;
 
@@ -31,6 +32,10 @@ public class Table {
     byte status;
     long nextUid;
     List<Field> fields = new ArrayList<>();
+    // 已经从索引中删除、但当时正被读取而没能回收的死版本
+    List<Long> unpurged = new ArrayList<>();
+    // 上一次 vacuum 之后表中仍引用的早于 horizon 的最小 XID，没有时为 horizon
+    long oldestXid;
 
     public static Table loadTable(TableManager tbm, long uid) {
         byte[] raw = null;
@@ -163,6 +168,64 @@ public class Table {
         return sb.toString();
     }
 
+    // 回收对所有事务都不可见的旧版本：先从所有索引中删除指向它的项，再回收它占用的空间，
+    // 这样回收之后不会再有索引指向这个位置；留下的版本冻结早于 horizon 的 XID，没能回收的死版本记入 oldestXid。
+    // 只在 TableManagerImpl 的 vacuumLock 下调用
+    int vacuum(long horizon) throws Exception {
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        int count = 0;
+        oldestXid = horizon;
+        List<Long> retry = unpurged;
+        unpurged = new ArrayList<>();
+        for (Long uid : retry) {
+            if(vm.purge(uid)) {
+                count ++;
+            } else {
+                unpurged.add(uid);
+                oldestXid = Math.min(oldestXid, vm.freeze(uid, horizon));
+            }
+        }
+
+        Field fd = null;
+        for (Field field : fields) {
+            if(field.isIndexed()) {
+                fd = field;
+                break;
+            }
+        }
+        // 没有索引就无法遍历版本，不能冻结
+        if(fd == null) {
+            oldestXid = TransactionManagerImpl.SUPER_XID;
+            return count;
+        }
+        for (Long uid : fd.search(Long.MIN_VALUE, Long.MAX_VALUE)) {
+            byte[] raw = vm.readDead(uid);
+            if(raw == null) {
+                oldestXid = Math.min(oldestXid, vm.freeze(uid, horizon));
+                continue;
+            }
+            Map<String, Object> entry = parseEntry(raw);
+            boolean removed = true;
+            for (Field field : fields) {
+                if(field.isIndexed()) {
+                    removed &= field.delete(entry.get(field.fieldName), uid);
+                }
+            }
+            // 有索引项没找到时不能回收，否则它会指向之后插入在这里的数据
+            if(!removed) {
+                oldestXid = Math.min(oldestXid, vm.freeze(uid, horizon));
+                continue;
+            }
+            if(vm.purge(uid)) {
+                count ++;
+            } else {
+                unpurged.add(uid);
+                oldestXid = Math.min(oldestXid, vm.freeze(uid, horizon));
+            }
+        }
+        return count;
+    }
+
     // 插入数据以entryraw(byte[])的形式
     public void insert(long xid, Insert insert) throws Exception {
         Map<String, Object> entry = string2Entry(insert.values);
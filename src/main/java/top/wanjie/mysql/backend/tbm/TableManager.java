@@ -24,6 +24,10 @@ public interface TableManager {
     byte[] update(long xid, Update update) throws Exception;
     byte[] delete(long xid, Delete delete) throws Exception;
 
+    byte[] backup(Backup backup) throws Exception;
+    // 停止后台回收，在关闭 DM 之前调用
+    void close();
+
     public static TableManager create(String path, VersionManager vm, DataManager dm) {
         Booter booter = Booter.create(path);
         booter.update(Parser.long2Byte(0));
@@ -5,6 +5,7 @@ package top.wanjie.mysql.backend.tbm;
 import top.wanjie.mysql.backend.common.Error;
 import top.wanjie.mysql.backend.dm.DataManager;
 import top.wanjie.mysql.backend.parser.statement.*;
+import top.wanjie.mysql.backend.utils.Panic;
 import top.wanjie.mysql.backend.utils.Parser;
 import top.wanjie.mysql.backend.vm.VersionManager;
 
@@ -12,6 +13,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -22,13 +25,25 @@ import java.util.concurrent.locks.ReentrantLock;
  * @Date 2023/04/13/15:58
  */
 public class TableManagerImpl implements TableManager {
+    // 更新和删除留下的旧版本累计到该数量后，由提交唤醒回收线程回收一次
+    static final int VACUUM_THRESHOLD = 1000;
+    // 没有旧版本时，距上次冻结又开始了这么多事务也回收一次，推进冻结点，TM 的文件不再增长
+    static final int FREEZE_THRESHOLD = 1 << 20;
     VersionManager vm;
     DataManager dm;
     private Booter booter;
     private Map<String, Table> tableCache;
     private Map<Long, List<Table>> xidTableCache;
     private Lock lock;
-    
+    private AtomicInteger garbage;
+    private Lock vacuumLock;
+    // 上一次因为事务数唤醒回收的事务，冻结点被长事务挡住时也不会每次提交都唤醒
+    private volatile long vacuumXid;
+    // 回收在后台线程中进行，提交只释放一个许可
+    private Thread vacuumer;
+    private Semaphore vacuumNeeded;
+    private volatile boolean closed;
+
     TableManagerImpl(VersionManager vm, DataManager dm, Booter booter) {
         this.vm = vm;
         this.dm = dm;
@@ -36,7 +51,13 @@ public class TableManagerImpl implements TableManager {
         this.tableCache = new HashMap<>();
         this.xidTableCache = new HashMap<>();
         lock = new ReentrantLock();
+        garbage = new AtomicInteger(0);
+        vacuumLock = new ReentrantLock();
+        vacuumNeeded = new Semaphore(0);
         loadTables();
+        vacuumer = new Thread(this::vacuumLoop, "vacuumer");
+        vacuumer.setDaemon(true);
+        vacuumer.start();
     }
 
     private void loadTables() {
@@ -69,14 +90,92 @@ public class TableManagerImpl implements TableManager {
     @Override
     public byte[] commit(long xid) throws Exception {
         vm.commit(xid);
+        if(garbage.get() >= VACUUM_THRESHOLD || xid - vacuumXid >= FREEZE_THRESHOLD) {
+            vacuumXid = xid;
+            vacuumNeeded.release();
+        }
         return "commit".getBytes();
     }
+
+    // 回收期间提交释放的许可一并丢掉，回收结束后旧版本的计数从回收开始时算起
+    private void vacuumLoop() {
+        try {
+            while(true) {
+                vacuumNeeded.acquire();
+                vacuumNeeded.drainPermits();
+                if(closed) {
+                    return;
+                }
+                vacuumLock.lock();
+                try {
+                    garbage.set(0);
+                    vacuumTables();
+                } finally {
+                    vacuumLock.unlock();
+                }
+            }
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 等进行中的回收结束后停止回收线程，在关闭 DM 之前调用
+    @Override
+    public void close() {
+        closed = true;
+        vacuumNeeded.release();
+        try {
+            vacuumer.join();
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 回收所有表中的死版本，返回回收的个数
+    int vacuum() {
+        vacuumLock.lock();
+        try {
+            return vacuumTables();
+        } finally {
+            vacuumLock.unlock();
+        }
+    }
+
+    // 冻结点之前的事务此后不会再写数据，之后新建的表和插入的版本只引用冻结点及之后的事务；
+    // 遍历完所有表，没有版本再引用 frozen 之前的事务，TM 可以丢掉它们的状态
+    private int vacuumTables() {
+        long horizon = vm.freezeHorizon();
+        lock.lock();
+        List<Table> tables = new ArrayList<>(tableCache.values());
+        lock.unlock();
+        int count = 0;
+        long frozen = horizon;
+        try {
+            for (Table table : tables) {
+                count += table.vacuum(horizon);
+                frozen = Math.min(frozen, table.oldestXid);
+            }
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        vm.freezeXids(frozen);
+        return count;
+    }
     @Override
     public byte[] abort(long xid) {
         vm.abort(xid);
         return "abort".getBytes();
     }
 
+    // 启动文件只在建表时改写，先于数据复制，指向的表在备份的日志中一定已经插入；
+    // 备份期间新建的表不在启动文件的表链中，恢复后找不到
+    @Override
+    public byte[] backup(Backup backup) throws Exception {
+        booter.backup(backup.path);
+        dm.backup(backup.path);
+        return "backup".getBytes();
+    }
+
     // 返回所有表及xid创建的表，若xid未创建表，返回空
     @Override
     public byte[] show(long xid) {
@@ -147,6 +246,7 @@ public class TableManagerImpl implements TableManager {
             throw Error.TableNotFoundException;
         }
         int count = table.update(xid, update);
+        garbage.addAndGet(count);
         return ("update " + count).getBytes();
     }
     @Override
@@ -158,6 +258,7 @@ public class TableManagerImpl implements TableManager {
             throw Error.TableNotFoundException;
         }
         int count = table.delete(xid, delete);
+        garbage.addAndGet(count);
         return ("delete " + count).getBytes();
     }
 }
@@ -22,6 +22,14 @@ public interface TransactionManager {
     boolean isActive(long xid);
     boolean isCommitted(long xid);
     boolean isAborted(long xid);
+    // 复制出 path 的 .xid 文件
+    void backup(String path);
+    // 时间点恢复时日志中会出现备份之后才分配的 XID：保证 xid 及之前的 XID 都已分配，新分配的先标记为回滚
+    void extend(long xid);
+    // 把已经改写的状态落盘；commit 和 abort 不落盘，事务是否提交以日志为准
+    void sync();
+    // xid 之前的事务都已结束，数据中也不再引用它们：之后一律视为已提交，不再保存状态
+    void freeze(long xid);
     void close();
 
     public static TransactionManagerImpl create(String path) {
@@ -47,7 +55,9 @@ public interface TransactionManager {
             Panic.panic(e);
         }
 
-        ByteBuffer buf = ByteBuffer.wrap(new byte[8]);
+        ByteBuffer buf = ByteBuffer.allocate(TransactionManagerImpl.XID_HEADER_LENGTH);
+        buf.putLong(TransactionManagerImpl.XID_MAGIC).putLong(0).putLong(1);
+        buf.flip();
         try {
             fc.position(0);
             fc.write(buf);
@@ -55,7 +65,7 @@ public interface TransactionManager {
             Panic.panic(e);
         }
 
-        TransactionManagerImpl tm = new TransactionManagerImpl(raf, fc);
+        TransactionManagerImpl tm = new TransactionManagerImpl(file, raf, fc);
         return tm;
 
     }
@@ -79,7 +89,7 @@ public interface TransactionManager {
             Panic.panic(e);
         }
 
-        TransactionManagerImpl tm = new TransactionManagerImpl(raf, fc);
+        TransactionManagerImpl tm = new TransactionManagerImpl(file, raf, fc);
         return tm;
 
     }
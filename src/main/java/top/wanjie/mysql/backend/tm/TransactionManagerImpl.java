@@ -4,21 +4,39 @@ import top.wanjie.mysql.backend.common.Error;
 import top.wanjie.mysql.backend.utils.Panic;
 import top.wanjie.mysql.backend.utils.Parser;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * @Author fraven
- * @Description
+ * @Description 事务状态保存在 .xid 文件中，[Magic] [XIDCounter] [Frozen] [State(Frozen)] ... [State(XIDCounter)]，每个状态一个字节。
+ * Frozen 之前的事务都已结束，数据中也不再引用它们，一律视为已提交，状态不再保存；freeze 推进 Frozen 时重写整个文件，
+ * 文件和内存副本的大小只与 Frozen 之后的事务数有关。没有 Magic 的旧文件为 [XIDCounter] [State1] ... [StateN]，打开时改写成新格式。
+ * begin 持有 counterLock 分配 XID；commit、abort 定位写文件再改写内存副本，查询状态只读内存副本，
+ * 都不需要调用者加锁，可以从任意多个线程同时调用
  * @Date 2023/03/29/21:58
  */
 public class TransactionManagerImpl implements TransactionManager{
-    static final int XID_HEADER_LENGTH = 8;
-    static final String XID_SUFFIX = ".xid";
+    // 旧格式的计数器是非负数，不会与 Magic 相同
+    static final long XID_MAGIC = 0xFFFFFFFF4D595844L;
+    static final int OF_MAGIC = 0;
+    public static final int OF_COUNTER = 8;
+    static final int OF_FROZEN = 16;
+    static final int XID_HEADER_LENGTH = 24;
+    private static final int LEGACY_HEADER_LENGTH = 8;
+    public static final String XID_SUFFIX = ".xid";
+    private static final String TMP_SUFFIX = ".tmp";
     private static final int XID_FIELD_SIZE = 1;
     private static final byte FIELD_TRAN_ACTIVE = 0;
     private static final byte FIELD_TRAN_COMMITTED = 1;
@@ -26,17 +44,67 @@ public class TransactionManagerImpl implements TransactionManager{
 
     public static final long SUPER_XID = 0;
 
+    private File file;
     RandomAccessFile raf = null;
     FileChannel fc = null;
+    // 第一个保存状态的 XID
+    private long frozen;
+    // 状态在文件中的起点，打开旧格式的文件时为 LEGACY_HEADER_LENGTH
+    private int headerLength;
+    // 定位读写文件时持有读锁，freeze 换文件时持有写锁
+    private ReadWriteLock fileLock;
+    // 文件中已经分配的 XID 数，XID 按块预分配，计数器每块只落盘一次
     private long xidCounter;
+    // 下一个分配出去的 XID，不超过 xidCounter + 1
+    private long nextXid;
     private Lock counterLock;
+    // 所有事务状态的内存副本，查询状态只读这里；改写时先写文件再改这里
+    private XidStates states;
+    // 打开时一次读入状态的块大小
+    private static final int LOAD_BUFFER_SIZE = 1 << 16;
+    // 每次预分配的 XID 数
+    private static final int XID_BLOCK = 4096;
 
 
-    TransactionManagerImpl(RandomAccessFile raf,FileChannel fc) {
+    TransactionManagerImpl(File file, RandomAccessFile raf,FileChannel fc) {
+        this.file = file;
         this.raf = raf;
         this.fc = fc;
         checkXidCounter();
+        // 上次预分配的块中没有用到的 XID 不再使用
+        this.nextXid = xidCounter + 1;
         this.counterLock = new ReentrantLock();
+        this.fileLock = new ReentrantReadWriteLock();
+        this.states = new XidStates();
+        states.freeze(frozen);
+        loadStates();
+        if(headerLength == LEGACY_HEADER_LENGTH) {
+            rewrite(frozen);
+        }
+    }
+
+    private void loadStates() {
+        ByteBuffer buf = ByteBuffer.allocate(LOAD_BUFFER_SIZE);
+        long xid = frozen;
+        try {
+            while(xid <= xidCounter) {
+                buf.clear();
+                buf.limit((int)Math.min(buf.capacity(), (xidCounter - xid + 1) * XID_FIELD_SIZE));
+                while(buf.hasRemaining()) {
+                    if(fc.read(buf, getXidPosition(xid) + buf.position()) < 0) {
+                        Panic.panic(Error.BadXIDFileException);
+                    }
+                }
+                for(int i = 0; i < buf.limit(); i += XID_FIELD_SIZE, xid ++) {
+                    byte state = buf.get(i);
+                    if(state != FIELD_TRAN_ACTIVE) {
+                        states.set(xid, state);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
     }
 
     void checkXidCounter() {
@@ -47,61 +115,143 @@ public class TransactionManagerImpl implements TransactionManager{
             Panic.panic(Error.BadXIDFileException);
         }
 
-        ByteBuffer buf = ByteBuffer.wrap(new byte[8]);
-        try {
-            fc.position(0);
-            fc.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+        byte[] header = readHeader(LEGACY_HEADER_LENGTH);
+        if(Parser.parseLong(header) == XID_MAGIC) {
+            header = readHeader(XID_HEADER_LENGTH);
+            this.xidCounter = Parser.parseLong(Arrays.copyOfRange(header, OF_COUNTER, OF_FROZEN));
+            this.frozen = Parser.parseLong(Arrays.copyOfRange(header, OF_FROZEN, XID_HEADER_LENGTH));
+            this.headerLength = XID_HEADER_LENGTH;
+        } else {
+            this.xidCounter = Parser.parseLong(header);
+            this.frozen = 1;
+            this.headerLength = LEGACY_HEADER_LENGTH;
+        }
+        if(frozen < 1 || frozen > xidCounter + 1) {
+            Panic.panic(Error.BadXIDFileException);
         }
-
-        this.xidCounter = Parser.parseLong(buf.array());
         long logicLength = getXidPosition(this.xidCounter + 1);
-        if(logicLength != length) {
+        if(logicLength > length) {
             Panic.panic(Error.BadXIDFileException);
         }
+        // 预分配时文件已经加长、计数器还没写就崩溃，多出的部分还没有分配
+        if(logicLength < length) {
+            try {
+                fc.truncate(logicLength);
+                fc.force(false);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    private byte[] readHeader(int length) {
+        ByteBuffer buf = ByteBuffer.wrap(new byte[length]);
+        try {
+            while(buf.hasRemaining()) {
+                if(fc.read(buf, buf.position()) < 0) {
+                    Panic.panic(Error.BadXIDFileException);
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return buf.array();
     }
 
     private long getXidPosition(long xid) {
-        return (xid - 1) * XID_FIELD_SIZE + XID_HEADER_LENGTH;
+        return (xid - frozen) * XID_FIELD_SIZE + headerLength;
+    }
+
+    // 把 [from, xidCounter] 的状态从内存副本写进临时文件，落盘后替换 .xid，崩溃时要么是旧文件要么是新文件；
+    // 调用时没有别的线程读写文件
+    private void rewrite(long from) {
+        File tmp = new File(file.getPath() + TMP_SUFFIX);
+        ByteBuffer buf = ByteBuffer.allocate(LOAD_BUFFER_SIZE);
+        buf.putLong(XID_MAGIC).putLong(xidCounter).putLong(from);
+        try (FileChannel dest = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long xid = from;
+            while(true) {
+                for(; xid <= xidCounter && buf.hasRemaining(); xid ++) {
+                    buf.put(states.get(xid));
+                }
+                buf.flip();
+                while(buf.hasRemaining()) {
+                    dest.write(buf);
+                }
+                if(xid > xidCounter) {
+                    break;
+                }
+                buf.clear();
+            }
+            dest.force(false);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            fc.close();
+            raf.close();
+            raf = new RandomAccessFile(file, "rw");
+            fc = raf.getChannel();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        frozen = from;
+        headerLength = XID_HEADER_LENGTH;
     }
 
+    // 状态只写进文件不落盘：写过日志的事务以 commitLog 或 abortLog 为准，恢复时据此补上丢失的状态，
+    // 检查点删除日志之前先调用 sync；没写过日志的事务不论状态如何都没有留下数据
+    // 文件只用定位读写，不改变共享的文件指针，不同 XID 的提交和回滚可以同时进行，不需要加锁
+    // 恢复时补状态可能遇到 Frozen 之前的事务，它们早已结束，不需要再写
     private void update(long xid,byte state) {
-        long offset = getXidPosition(xid);
         byte[] tmp = new byte[1];
         tmp[0] = state;
         ByteBuffer buf = ByteBuffer.wrap(tmp);
+        fileLock.readLock().lock();
         try {
-            fc.position(offset);
-            fc.write(buf);
-            fc.force(false);
+            if(xid < frozen) {
+                return;
+            }
+            long offset = getXidPosition(xid);
+            while(buf.hasRemaining()) {
+                fc.write(buf, offset);
+            }
+            states.set(xid, state);
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            fileLock.readLock().unlock();
         }
-
     }
 
-    private void increXidCounter(){
-        xidCounter++;
-        ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(xidCounter));
+    // 把文件加长到 counter 个 XID，新的状态全为活跃，再改写计数器；两步分别落盘，
+    // 崩溃时要么计数器没变、多出的部分在打开时截掉，要么新的 XID 都已分配；调用时持有 counterLock
+    private void growXidCounter(long counter) {
+        ByteBuffer buf = ByteBuffer.allocate((int)(counter - xidCounter) * XID_FIELD_SIZE);
         try {
-            fc.position(0);
-            fc.write(buf);
+            long offset = getXidPosition(xidCounter + 1);
+            while(buf.hasRemaining()) {
+                fc.write(buf, offset + buf.position());
+            }
+            fc.force(false);
+            buf = ByteBuffer.wrap(Parser.long2Byte(counter));
+            while(buf.hasRemaining()) {
+                fc.write(buf, OF_COUNTER + buf.position());
+            }
             fc.force(false);
         } catch (IOException e) {
             Panic.panic(e);
         }
-
+        xidCounter = counter;
     }
 
+    // 预分配的 XID 在文件中已经是活跃状态，分配时不需要写文件
     @Override
     public long begin() {
         counterLock.lock();
         try {
-            long xid = xidCounter + 1;
-            update(xid,FIELD_TRAN_ACTIVE);
-            increXidCounter();
-            return xid;
+            if(nextXid > xidCounter) {
+                growXidCounter(xidCounter + XID_BLOCK);
+            }
+            return nextXid ++;
         }finally {
             counterLock.unlock();
         }
@@ -118,18 +268,13 @@ public class TransactionManagerImpl implements TransactionManager{
         update(xid,FIELD_TRAN_ABORTED);
     }
 
-    private boolean checkXid(long xid,Byte state) {
-        long offset = getXidPosition(xid);
-        byte[] tmp = new byte[1];
-        tmp[0] = state;
-        ByteBuffer buf = ByteBuffer.wrap(tmp);
-        try {
-            fc.position(offset);
-            fc.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+    // 只查内存中的副本，不访问磁盘；Frozen 之前的事务不用查，都已提交
+    private boolean checkXid(long xid,byte state) {
+        byte s = states.get(xid);
+        if(s == XidStates.FROZEN) {
+            s = FIELD_TRAN_COMMITTED;
         }
-        return buf.array()[0] == state;
+        return s == state;
     }
 
     @Override
@@ -156,9 +301,95 @@ public class TransactionManagerImpl implements TransactionManager{
         return checkXid(xid,FIELD_TRAN_ABORTED);
     }
 
+    // 新分配的状态一次写完，与 update 一样不落盘
+    @Override
+    public void extend(long xid) {
+        counterLock.lock();
+        try {
+            if(xid < nextXid) {
+                return;
+            }
+            if(xid > xidCounter) {
+                growXidCounter(xid);
+            }
+            byte[] aborted = new byte[(int)(xid - nextXid + 1) * XID_FIELD_SIZE];
+            Arrays.fill(aborted, FIELD_TRAN_ABORTED);
+            ByteBuffer buf = ByteBuffer.wrap(aborted);
+            while(buf.hasRemaining()) {
+                fc.write(buf, getXidPosition(nextXid) + buf.position());
+            }
+            for(; nextXid <= xid; nextXid ++) {
+                states.set(nextXid, FIELD_TRAN_ABORTED);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            counterLock.unlock();
+        }
+    }
+
+    // 持有 counterLock 和写锁，没有新事务开始，也没有提交和回滚改写文件；
+    // 超过 nextXid 的部分还没有分配出去，只推进到 nextXid
+    @Override
+    public void freeze(long xid) {
+        counterLock.lock();
+        fileLock.writeLock().lock();
+        try {
+            xid = Math.min(xid, nextXid);
+            if(xid <= frozen) {
+                return;
+            }
+            rewrite(xid);
+            states.freeze(xid);
+        } finally {
+            fileLock.writeLock().unlock();
+            counterLock.unlock();
+        }
+    }
+
+    @Override
+    public void sync() {
+        fileLock.readLock().lock();
+        try {
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    // 持有 counterLock，复制期间不会开始新事务，也不会换文件；状态用定位读复制，不影响同时进行的提交和回滚
+    @Override
+    public void backup(String path) {
+        counterLock.lock();
+        try {
+            long length = getXidPosition(xidCounter + 1);
+            ByteBuffer buf = ByteBuffer.allocate((int)length);
+            while(buf.hasRemaining()) {
+                if(fc.read(buf, buf.position()) < 0) {
+                    Panic.panic(Error.BadXIDFileException);
+                }
+            }
+            buf.flip();
+            try (FileChannel dest = FileChannel.open(new File(path + XID_SUFFIX).toPath(),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                while(buf.hasRemaining()) {
+                    dest.write(buf);
+                }
+                dest.force(false);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            counterLock.unlock();
+        }
+    }
+
     @Override
     public void close() {
         try {
+            fc.force(false);
             fc.close();
             raf.close();
         } catch (IOException e) {
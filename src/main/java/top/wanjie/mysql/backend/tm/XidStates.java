@@ -0,0 +1,129 @@
+package top.wanjie.mysql.backend.tm;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @Author fraven
+ * @Description .xid 中事务状态在内存中的副本，每个 XID 占 2 位。
+ * 按块分配，块一旦分配就不再移动，读状态不加锁也不访问磁盘；同一个 long 中的不同 XID 用 CAS 改写，互不覆盖。
+ * frozen 之前的状态不再保存，整块落在 frozen 之前的块会被丢掉，也不会再分配
+ * @Date 2023/05/22/19:48
+ */
+class XidStates {
+    // 每块 65536 个 XID，占 16KB
+    private static final int CHUNK_SHIFT = 16;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+    // 每个 long 放 32 个 XID
+    private static final int WORD_SHIFT = 5;
+    private static final int WORD_MASK = (1 << WORD_SHIFT) - 1;
+    private static final int STATE_BITS = 2;
+    private static final long STATE_MASK = (1L << STATE_BITS) - 1;
+
+    // 已经不再保存的 XID 返回 FROZEN
+    static final byte FROZEN = -1;
+
+    // 第一块的编号和从它开始的各块一起换，读的时候不会拿到不配套的两者
+    private static class Chunks {
+        final long base;
+        final AtomicLongArray[] array;
+
+        Chunks(long base, AtomicLongArray[] array) {
+            this.base = base;
+            this.array = array;
+        }
+    }
+
+    private volatile Chunks chunks;
+    private volatile long frozen;
+    private Lock growLock;
+
+    XidStates() {
+        chunks = new Chunks(0, new AtomicLongArray[0]);
+        growLock = new ReentrantLock();
+    }
+
+    // 尚未写过状态的 XID 为 0，即活跃
+    byte get(long xid) {
+        if(xid < frozen) {
+            return FROZEN;
+        }
+        Chunks cs = chunks;
+        long c = (xid >>> CHUNK_SHIFT) - cs.base;
+        // 读到 frozen 之后这一块才被丢掉
+        if(c < 0) {
+            return FROZEN;
+        }
+        if(c >= cs.array.length) {
+            return 0;
+        }
+        AtomicLongArray chunk = cs.array[(int)c];
+        int i = (int)(xid & CHUNK_MASK);
+        long word = chunk.get(i >>> WORD_SHIFT);
+        return (byte)((word >>> shift(i)) & STATE_MASK);
+    }
+
+    void set(long xid, byte state) {
+        AtomicLongArray chunk = chunk(xid >>> CHUNK_SHIFT);
+        int i = (int)(xid & CHUNK_MASK);
+        int shift = shift(i);
+        while(true) {
+            long word = chunk.get(i >>> WORD_SHIFT);
+            long updated = (word & ~(STATE_MASK << shift)) | ((long)state << shift);
+            if(word == updated || chunk.compareAndSet(i >>> WORD_SHIFT, word, updated)) {
+                return;
+            }
+        }
+    }
+
+    // 不再保存 xid 之前的状态，之后 set 的 XID 都不能小于 xid；
+    // 整块落在 xid 之前的块丢掉，以后也不会再分配，打开 TM 时先调用，只为 frozen 之后的块分配内存
+    void freeze(long xid) {
+        growLock.lock();
+        try {
+            frozen = xid;
+            Chunks cs = chunks;
+            long base = xid >>> CHUNK_SHIFT;
+            if(base <= cs.base) {
+                return;
+            }
+            int from = (int)Math.min(cs.array.length, base - cs.base);
+            chunks = new Chunks(base, Arrays.copyOfRange(cs.array, from, cs.array.length));
+        } finally {
+            growLock.unlock();
+        }
+    }
+
+    // 已经分配的块数
+    int chunkCount() {
+        return chunks.array.length;
+    }
+
+    private static int shift(int i) {
+        return (i & WORD_MASK) * STATE_BITS;
+    }
+
+    private AtomicLongArray chunk(long c) {
+        Chunks cs = chunks;
+        if(c - cs.base < cs.array.length) {
+            return cs.array[(int)(c - cs.base)];
+        }
+        growLock.lock();
+        try {
+            cs = chunks;
+            int k = (int)(c - cs.base);
+            if(k >= cs.array.length) {
+                AtomicLongArray[] grown = Arrays.copyOf(cs.array, k + 1);
+                for(int j = cs.array.length; j <= k; j ++) {
+                    grown[j] = new AtomicLongArray((CHUNK_MASK + 1) >>> WORD_SHIFT);
+                }
+                chunks = cs = new Chunks(cs.base, grown);
+            }
+            return cs.array[k];
+        } finally {
+            growLock.unlock();
+        }
+    }
+}
@@ -1,9 +1,28 @@
 package top.wanjie.mysql.backend.utils;
 
+// uid: [Pgno 32] [保留 10] [Generation 6] [Offset 16]
 public class Types {
-    public static long addressToUid(int pgno, short offset) {
+    // 页内偏移按无符号 16 位保存
+    public static long addressToUid(int pgno, int offset) {
+        return addressToUid(pgno, offset, 0);
+    }
+
+    public static long addressToUid(int pgno, int offset, int gen) {
         long u0 = (long)pgno;
-        long u1 = (long)offset;
-        return u0 << 32 | u1;
+        long u1 = (long)(offset & 0xFFFF);
+        long u2 = (long)(gen & 0x3F);
+        return u0 << 32 | u2 << 16 | u1;
+    }
+
+    public static int uidToPgno(long uid) {
+        return (int)(uid >>> 32);
+    }
+
+    public static int uidToOffset(long uid) {
+        return (int)(uid & 0xFFFF);
+    }
+
+    public static int uidToGeneration(long uid) {
+        return (int)((uid >>> 16) & 0x3F);
     }
 }
@@ -0,0 +1,43 @@
+package top.wanjie.mysql.backend.vm;
+
+import java.util.Arrays;
+
+/**
+ * @Author fraven
+ * @Description 活跃事务的 xid，按升序存在一个 long 数组中。新事务的 xid 比所有活跃事务都大，直接追加；
+ * 结束的事务二分查找后移除。取快照只复制一次数组，不装箱也不排序。调用者持有 VersionManagerImpl 的 lock
+ * @Date 2023/05/24/20:31
+ */
+class ActiveXids {
+    private long[] xids;
+    private int size;
+
+    ActiveXids() {
+        xids = new long[16];
+    }
+
+    void add(long xid) {
+        if(size == xids.length) {
+            xids = Arrays.copyOf(xids, size * 2);
+        }
+        xids[size ++] = xid;
+    }
+
+    void remove(long xid) {
+        int i = Arrays.binarySearch(xids, 0, size, xid);
+        if(i < 0) {
+            return;
+        }
+        System.arraycopy(xids, i + 1, xids, i, size - i - 1);
+        size --;
+    }
+
+    // 没有活跃事务时返回 Long.MAX_VALUE
+    long min() {
+        return size == 0 ? Long.MAX_VALUE : xids[0];
+    }
+
+    Snapshot snapshot(long xid) {
+        return new Snapshot(xid, Arrays.copyOf(xids, size));
+    }
+}
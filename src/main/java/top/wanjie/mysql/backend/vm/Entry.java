@@ -3,6 +3,7 @@ package top.wanjie.mysql.backend.vm;
 import com.google.common.primitives.Bytes;
 import top.wanjie.mysql.backend.common.SubArray;
 import top.wanjie.mysql.backend.dm.dataItem.DataItem;
+import top.wanjie.mysql.backend.tm.TransactionManagerImpl;
 import top.wanjie.mysql.backend.utils.Parser;
 
 import javax.xml.crypto.Data;
@@ -97,6 +98,25 @@ public class Entry {
         }
     }
 
+    // xmin、xmax 仍为给定的值时改写成 newXmin、newXmax，与 setXmax 互斥，返回是否改写；
+    // 只用于冻结，日志记在 SUPER_XID 名下，恢复时总会重做
+    public boolean replaceXids(long xmin, long xmax, long newXmin, long newXmax) {
+        di.before();
+        SubArray sa = di.data();
+        if(Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMIN, sa.start+OF_XMAX)) != xmin
+                || Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMAX, sa.start+OF_DATA)) != xmax) {
+            di.unBefore();
+            return false;
+        }
+        try {
+            System.arraycopy(Parser.long2Byte(newXmin), 0, sa.raw, sa.start+OF_XMIN, 8);
+            System.arraycopy(Parser.long2Byte(newXmax), 0, sa.raw, sa.start+OF_XMAX, 8);
+        } finally {
+            di.after(TransactionManagerImpl.SUPER_XID);
+        }
+        return true;
+    }
+
     public long getUid() {
         return uid;
     }
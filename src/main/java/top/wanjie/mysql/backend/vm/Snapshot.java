@@ -0,0 +1,29 @@
+package top.wanjie.mysql.backend.vm;
+
+import java.util.Arrays;
+
+/**
+ * @Author fraven
+ * @Description 可重复读事务开始时的快照：xids 是当时仍活跃的事务，按升序排列，开始之后不再改变。
+ * xmin 是其中最小的，没有时等于 xmax；xmax 是事务自己的 xid，之后开始的事务都不小于它。
+ * 小于 xmin 或不小于 xmax 的 XID 只需比较范围，其余的二分查找
+ * @Date 2023/05/24/20:17
+ */
+public class Snapshot {
+    public final long xmin;
+    public final long xmax;
+    private final long[] xids;
+
+    Snapshot(long xmax, long[] xids) {
+        this.xmin = xids.length == 0 ? xmax : xids[0];
+        this.xmax = xmax;
+        this.xids = xids;
+    }
+
+    public boolean contains(long xid) {
+        if(xid < xmin || xid >= xmax) {
+            return false;
+        }
+        return Arrays.binarySearch(xids, xid) >= 0;
+    }
+}
@@ -1,7 +1,5 @@
 package top.wanjie.mysql.backend.vm;
 
-import java.util.Map;
-
 /**
  * @Author fraven
  * @Description
@@ -10,24 +8,24 @@ import java.util.Map;
 public class Transaction {
     public long xid;
     public int level;
-    public Map<Long, Boolean> snapshot;
+    // 读已提交的事务没有快照
+    public Snapshot snapshot;
     public Exception err;
     public boolean autoAborted;
 
-    public static Transaction newTransaction(long xid, int level, Map<Long, Transaction> active) {
+    // active 不含 SUPER_XID，也不含 xid 自己
+    public static Transaction newTransaction(long xid, int level, ActiveXids active) {
         Transaction t = new Transaction();
         t.xid = xid;
         t.level = level;
         if(level != 0) {
-            for (Long x: active.keySet()) {
-                t.snapshot.put(x, true);
-            }
+            t.snapshot = active.snapshot(xid);
         }
         return t;
     }
 
     public boolean isInSnapshot(long xid) {
-        return snapshot.containsKey(xid);
+        return snapshot != null && snapshot.contains(xid);
     }
 
 }
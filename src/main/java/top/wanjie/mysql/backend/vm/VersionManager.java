@@ -12,6 +12,17 @@ public interface VersionManager {
     byte[] read(long xid, long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
     boolean delete(long xid, long uid) throws Exception;
+    // 版本已经对所有事务都不可见时返回它的数据，否则返回 null
+    byte[] readDead(long uid) throws Exception;
+    // 回收一个已经从所有索引中删除的死版本，还有事务正在读取它时返回 false
+    boolean purge(long uid) throws Exception;
+    // 冻结点：比它小的事务都已结束，也不在任何活跃事务的快照中
+    long freezeHorizon();
+    // 冻结版本中早于 horizon 的 XID：已提交的 xmin 改为 SUPER_XID，已回滚的 xmax 清空；
+    // 返回之后仍引用的早于 horizon 的最小 XID（死版本），没有时返回 horizon
+    long freeze(long uid, long horizon) throws Exception;
+    // 数据中已经不再引用 xid 之前的事务，TM 不再保存它们的状态
+    void freezeXids(long xid);
 
     long begin(int level);
     void commit(long xid) throws Exception;
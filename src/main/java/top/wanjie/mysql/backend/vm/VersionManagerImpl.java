@@ -3,6 +3,7 @@ package top.wanjie.mysql.backend.vm;
 import top.wanjie.mysql.backend.common.AbstractCache;
 import top.wanjie.mysql.backend.common.Error;
 import top.wanjie.mysql.backend.dm.DataManager;
+import top.wanjie.mysql.backend.dm.dataItem.DataItem;
 import top.wanjie.mysql.backend.tm.TransactionManager;
 import top.wanjie.mysql.backend.tm.TransactionManagerImpl;
 
@@ -20,15 +21,20 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
     TransactionManager tm;
     DataManager dm;
     Map<Long, Transaction> activeTransaction;
+    // 与 activeTransaction 同步增删，不含 SUPER_XID
+    ActiveXids activeXids;
     Lock lock;
     LockTable lt;
+    // 分配过的最大的 xid，在 lock 下改写
+    long lastXid;
 
     public VersionManagerImpl(TransactionManager tm, DataManager dm) {
         super(0);
         this.tm = tm;
         this.dm = dm;
         this.activeTransaction = new HashMap<>();
-        activeTransaction.put(TransactionManagerImpl.SUPER_XID, Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, null));
+        this.activeXids = new ActiveXids();
+        activeTransaction.put(TransactionManagerImpl.SUPER_XID, Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, activeXids));
         this.lock = new ReentrantLock();
         this.lt = new LockTable();
     }
@@ -131,13 +137,127 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
     }
 
+    // 死版本：插入它的事务已回滚，或者删除它的事务已提交且早于 horizon
+    @Override
+    public byte[] readDead(long uid) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch (Exception e) {
+            if(e == Error.NullEntryException) {
+                return null;
+            } else {
+                throw e;
+            }
+        }
+        try {
+            if(tm.isAborted(entry.getXmin())) {
+                return entry.data();
+            }
+            long xmax = entry.getXmax();
+            // 必须在确认 xmax 已提交之后再计算 horizon，否则可能漏掉两者之间开始、快照中含有 xmax 的事务
+            if(xmax != 0 && tm.isCommitted(xmax) && xmax < horizon()) {
+                return entry.data();
+            }
+            return null;
+        } finally {
+            entry.release();
+        }
+    }
+
+    // 活跃事务及其快照中最小的 xid，比它小的已提交事务所做的删除对所有活跃事务和之后开始的事务都可见
+    private long horizon() {
+        lock.lock();
+        try {
+            long horizon = activeXids.min();
+            for (Transaction t : activeTransaction.values()) {
+                if(t.snapshot != null) {
+                    horizon = Math.min(horizon, t.snapshot.xmin);
+                }
+            }
+            return horizon;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 没有活跃事务时 horizon 为无穷大，冻结点不能超过下一个分配的 xid
+    @Override
+    public long freezeHorizon() {
+        lock.lock();
+        try {
+            return Math.min(horizon(), lastXid + 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 早于 horizon 的事务都已结束：已提交的 xmin 对所有事务可见，换成 SUPER_XID 不改变可见性；
+    // 已回滚的 xmax 等于没有删除；已回滚的 xmin 和已提交的 xmax 是死版本，只能等回收
+    // 改写时 xmax 可能刚被别的事务设置，重新读一遍
+    @Override
+    public long freeze(long uid, long horizon) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch (Exception e) {
+            if(e == Error.NullEntryException) {
+                return horizon;
+            } else {
+                throw e;
+            }
+        }
+        try {
+            while(true) {
+                long xmin = entry.getXmin();
+                long xmax = entry.getXmax();
+                long newXmin = xmin, newXmax = xmax;
+                if(xmin != TransactionManagerImpl.SUPER_XID && xmin < horizon && tm.isCommitted(xmin)) {
+                    newXmin = TransactionManagerImpl.SUPER_XID;
+                }
+                if(xmax != 0 && xmax < horizon && tm.isAborted(xmax)) {
+                    newXmax = 0;
+                }
+                if((newXmin != xmin || newXmax != xmax) && !entry.replaceXids(xmin, xmax, newXmin, newXmax)) {
+                    continue;
+                }
+                long oldest = horizon;
+                if(newXmin != TransactionManagerImpl.SUPER_XID) {
+                    oldest = Math.min(oldest, newXmin);
+                }
+                if(newXmax != 0) {
+                    oldest = Math.min(oldest, newXmax);
+                }
+                return oldest;
+            }
+        } finally {
+            entry.release();
+        }
+    }
+
+    @Override
+    public void freezeXids(long xid) {
+        tm.freeze(xid);
+    }
+
+    @Override
+    public boolean purge(long uid) throws Exception {
+        DataItem di = dm.read(uid);
+        if(di == null) {
+            return false;
+        }
+        return dm.free(di);
+    }
+
     @Override
     public long begin(int level) {
         lock.lock();
         try {
             long xid = tm.begin();
-            Transaction t = Transaction.newTransaction(xid, level, activeTransaction);
+            lastXid = xid;
+            Transaction t = Transaction.newTransaction(xid, level, activeXids);
             activeTransaction.put(xid, t);
+            activeXids.add(xid);
             return xid;
         } finally {
             lock.unlock();
@@ -150,12 +270,14 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         try {
             Transaction t = activeTransaction.get(xid);
             if(t.err != null) throw t.err;
-            activeTransaction.remove(xid);
         } finally {
             lock.unlock();
         }
+        // 提交落盘、TM 中的状态确定之后才移出活跃事务，之后取的快照不含它时它一定已经提交；
+        // 再释放锁，之前等待的事务不会改写这个事务的修改，恢复时回滚它不会覆盖别的事务
+        dm.commit(xid);
+        removeActive(xid);
         lt.remove(xid);
-        tm.commit(xid);
     }
 
     @Override
@@ -163,21 +285,35 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         internAbort(xid,false);
     }
 
+    // 自动回滚时已经写过 abortLog，事务留在活跃事务中，直到调用者 abort 时才移出
     private void internAbort(long xid,boolean autoAborted) {
         lock.lock();
+        Transaction t;
         try{
-            Transaction t = activeTransaction.get(xid);
-            if(!autoAborted) {
-                activeTransaction.remove(xid);
-            }
-            if(t.autoAborted) return;
+            t = activeTransaction.get(xid);
         } finally {
             lock.unlock();
         }
 
-        lt.remove(xid);
-        tm.abort(xid);
+        if(!t.autoAborted) {
+            dm.abort(xid);
+        }
+        if(!autoAborted) {
+            removeActive(xid);
+        }
+        if(!t.autoAborted) {
+            lt.remove(xid);
+        }
+    }
 
+    private void removeActive(long xid) {
+        lock.lock();
+        try {
+            activeTransaction.remove(xid);
+            activeXids.remove(xid);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void releaseEntry(Entry entry) {
@@ -0,0 +1,173 @@
+package top.wanjie.mysql.backend.common;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class AbstractCacheTest {
+
+    static class KeyCache extends AbstractCache<Long> {
+        KeyCache(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected Long getForCache(long key) {
+            return key;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {}
+    }
+
+    // 模拟一次耗时 loadNanos 的页面读取，key 为负数时读取失败
+    static class SlowCache extends AbstractCache<Long> {
+        AtomicInteger loads = new AtomicInteger();
+        long loadNanos;
+
+        SlowCache(long loadNanos) {
+            super(0);
+            this.loadNanos = loadNanos;
+        }
+
+        @Override
+        protected Long getForCache(long key) throws Exception {
+            loads.incrementAndGet();
+            LockSupport.parkNanos(loadNanos);
+            if(key < 0) {
+                throw new RuntimeException("load failed");
+            }
+            return key;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {}
+    }
+
+    // 预读占位期间的访问者等待 fill，不会自己加载；占位未被引用，可以被淘汰
+    @Test
+    public void testClaimFill() throws Exception {
+        KeyCache cache = new KeyCache(2);
+        assert cache.claim(7);
+        assert !cache.claim(7);
+        AtomicLong got = new AtomicLong(0);
+        Thread t = new Thread(() -> {
+            try {
+                got.set(cache.get(7));
+                cache.release(7);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        t.start();
+        Thread.sleep(50);
+        // 还没有 fill，访问者在等待
+        assert got.get() == 0;
+        cache.fill(7, 70L);
+        t.join();
+        assert got.get() == 70L;
+
+        // 缓存满时淘汰未被引用的预读资源
+        assert cache.claim(8);
+        cache.fill(8, 80L);
+        assert cache.get(9) == 9L;
+        assert cache.get(10) == 10L;
+        cache.release(9);
+        cache.release(10);
+    }
+
+    // 多个线程同时 miss 同一个 key，只加载一次；每一轮都在所有线程拿到之后才释放，所以每轮恰好加载一次
+    @Test
+    public void testConcurrentMiss() throws Exception {
+        int threads = 8, rounds = 100;
+        SlowCache cache = new SlowCache(50_000);
+        AtomicInteger errors = new AtomicInteger();
+        for(int round = 0; round < rounds; round ++) {
+            CountDownLatch start = new CountDownLatch(1);
+            CountDownLatch got = new CountDownLatch(threads);
+            CountDownLatch done = new CountDownLatch(threads);
+            for(int i = 0; i < threads; i ++) {
+                new Thread(() -> {
+                    try {
+                        start.await();
+                        if(cache.get(1) != 1L) errors.incrementAndGet();
+                        got.countDown();
+                        // 所有线程都拿到之后再释放，下一轮重新 miss
+                        got.await();
+                        cache.release(1);
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }).start();
+            }
+            start.countDown();
+            done.await();
+        }
+        assert errors.get() == 0;
+        assert cache.loads.get() == rounds;
+    }
+
+    // 加载失败时，异常抛给所有等待者，而不是由每个等待者各自重试
+    @Test
+    public void testLoadFailurePropagates() throws Exception {
+        int threads = 8;
+        SlowCache cache = new SlowCache(100_000_000);
+        CountDownLatch done = new CountDownLatch(threads);
+        AtomicInteger failed = new AtomicInteger();
+        for(int i = 0; i < threads; i ++) {
+            new Thread(() -> {
+                try {
+                    cache.get(-1);
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        assert failed.get() == threads;
+        assert cache.loads.get() == 1;
+    }
+
+    // 多个线程同时随机 get/release，每次拿到的都是对应 key 的资源，结束后所有引用都已释放
+    @Test
+    public void testConcurrentGetRelease() throws Exception {
+        int threads = 8, keys = 512, perThread = 20000;
+        KeyCache cache = new KeyCache(1024);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        AtomicInteger errors = new AtomicInteger();
+        for(int i = 0; i < threads; i ++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    ThreadLocalRandom r = ThreadLocalRandom.current();
+                    for(int n = 0; n < perThread; n ++) {
+                        long key = r.nextInt(keys);
+                        Long v = cache.get(key);
+                        if(v != key) errors.incrementAndGet();
+                        cache.release(key);
+                    }
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        assert errors.get() == 0;
+        // 引用都已释放、资源都已淘汰，才能再放入 1024 个新的 key 而不超出容量
+        for(long key = keys; key < keys + 1024; key ++) {
+            assert cache.get(key) == key;
+        }
+    }
+}
@@ -4,19 +4,31 @@ import org.junit.Test;
 
 import top.wanjie.mysql.backend.common.SubArray;
 import top.wanjie.mysql.backend.dm.dataItem.DataItem;
+import top.wanjie.mysql.backend.dm.logger.Logger;
 import top.wanjie.mysql.backend.dm.pageCache.PageCache;
 import top.wanjie.mysql.backend.tm.MockTransactionManager;
 import top.wanjie.mysql.backend.tm.TransactionManager;
+import top.wanjie.mysql.backend.tm.TransactionManagerImpl;
 import top.wanjie.mysql.backend.utils.Panic;
+import top.wanjie.mysql.backend.utils.Parser;
 import top.wanjie.mysql.backend.utils.RandomUtil;
+import top.wanjie.mysql.backend.utils.Types;
 
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -109,7 +121,7 @@ public class DataManagerTest {
         dm0.close(); mdm.close();
 
         new File("/tmp/TESTDMSingle.db").delete();
-        new File("/tmp/TESTDMSingle.log").delete();
+        Logger.remove("/tmp/TESTDMSingle");
     }
 
     @Test
@@ -129,7 +141,7 @@ public class DataManagerTest {
         dm0.close(); mdm.close();
 
         new File("/tmp/TestDMMulti.db").delete();
-        new File("/tmp/TestDMMulti.log").delete();
+        Logger.remove("/tmp/TestDMMulti");
     }
 
     @Test
@@ -150,12 +162,706 @@ public class DataManagerTest {
                 new Thread(r).run();
             }
             cdl.await();
+            if(i < 7) crash((DataManagerImpl)dm0);
         }
         dm0.close(); mdm.close();
         
         new File("/tmp/TestRecoverySimple.db").delete();
-        new File("/tmp/TestRecoverySimple.log").delete();
+        Logger.remove("/tmp/TestRecoverySimple");
         new File("/tmp/TestRecoverySimple.xid").delete();
 
     }
+
+    @Test
+    public void testRecoveryFromCheckpoint() throws Exception {
+        TransactionManager tm0 = TransactionManager.create("/tmp/TestRecoveryCheckpoint");
+        DataManagerImpl dm0 = (DataManagerImpl)DataManager.create("/tmp/TestRecoveryCheckpoint", PageCache.PAGE_SIZE*10, tm0);
+
+        byte[] a = RandomUtil.randomBytes(60), b = RandomUtil.randomBytes(60), c = RandomUtil.randomBytes(60);
+        long xa = tm0.begin();
+        long ua = dm0.insert(xa, a);
+        tm0.commit(xa);
+        dm0.checkpoint();
+
+        long xb = tm0.begin();
+        long ub = dm0.insert(xb, b);
+        long xc = tm0.begin();
+        long uc = dm0.insert(xc, c);
+        tm0.commit(xc);
+
+        crash(dm0);
+
+        DataManager dm1 = DataManager.open("/tmp/TestRecoveryCheckpoint", PageCache.PAGE_SIZE*10, tm0);
+        assertData(dm1.read(ua), a);
+        assertData(dm1.read(uc), c);
+        assert dm1.read(ub) == null;
+        assert !tm0.isActive(xb);
+        dm1.close();
+        tm0.close();
+
+        new File("/tmp/TestRecoveryCheckpoint.db").delete();
+        Logger.remove("/tmp/TestRecoveryCheckpoint");
+        new File("/tmp/TestRecoveryCheckpoint.xid").delete();
+    }
+
+    @Test
+    public void testPageSizes() throws Exception {
+        int[] sizes = {PageCache.PAGE_SIZE / 2, PageCache.PAGE_SIZE * 2, PageCache.PAGE_SIZE * 8};
+        for (int pageSize : sizes) {
+            String path = "/tmp/TestDMPageSize" + pageSize;
+            TransactionManager tm0 = TransactionManager.create(path);
+            DataManagerImpl dm0 = (DataManagerImpl)DataManager.create(path, pageSize*40L, tm0, pageSize);
+
+            // 64KB 页面中超过 32KB 的记录，偏移和长度都需要按无符号数处理
+            int big = Math.min(pageSize / 2 + 1000, pageSize - 100);
+            List<byte[]> rows = new ArrayList<>();
+            List<Long> uids = new ArrayList<>();
+            long xid = tm0.begin();
+            for(int i = 0; i < 200; i ++) {
+                byte[] row = RandomUtil.randomBytes(i % 10 == 0 ? big : 60 + i);
+                rows.add(row);
+                uids.add(dm0.insert(xid, row));
+            }
+            tm0.commit(xid);
+            long aborted = tm0.begin();
+            long ua = dm0.insert(aborted, RandomUtil.randomBytes(big));
+            crash(dm0);
+
+            DataManager dm1 = DataManager.open(path, pageSize*40L, tm0);
+            assert dm1.getPageSize() == pageSize;
+            assert dm1.read(ua) == null;
+            for(int i = 0; i < rows.size(); i ++) {
+                assertData(dm1.read(uids.get(i)), rows.get(i));
+            }
+            dm1.close();
+            tm0.close();
+
+            new File(path + ".db").delete();
+            Logger.remove(path);
+            new File(path + ".xid").delete();
+        }
+    }
+
+    @Test
+    public void testFreeReuse() throws Exception {
+        TransactionManager tm0 = TransactionManager.create("/tmp/TestDMFree");
+        DataManagerImpl dm0 = (DataManagerImpl)DataManager.create("/tmp/TestDMFree", PageCache.PAGE_SIZE*10, tm0);
+
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> rows = new ArrayList<>();
+        for(int round = 0; round < 20; round ++) {
+            // 每轮回收一半数据再插入同样多的数据，空间被复用，页数不再增长
+            long xid = tm0.begin();
+            while(uids.size() < 300) {
+                byte[] row = RandomUtil.randomBytes(40 + random.nextInt(40));
+                uids.add(dm0.insert(xid, row));
+                rows.add(row);
+            }
+            tm0.commit(xid);
+            for(int i = uids.size() - 1; i >= 0; i -= 2) {
+                long uid = uids.remove(i);
+                rows.remove(i);
+                assert dm0.free(dm0.read(uid));
+                assert dm0.read(uid) == null;
+            }
+        }
+        int pages = dm0.pc.getPageNumber();
+        assert pages < 10;
+        for(int i = 0; i < uids.size(); i ++) {
+            assertData(dm0.read(uids.get(i)), rows.get(i));
+        }
+
+        // 还有其他引用时不回收
+        DataItem held = dm0.read(uids.get(0));
+        assert !dm0.free(dm0.read(uids.get(0)));
+        held.release();
+
+        // 回收与复用都记在日志中，崩溃恢复之后空洞和复用的数据仍然正确
+        long xid = tm0.begin();
+        long ua = dm0.insert(xid, RandomUtil.randomBytes(50));
+        crash(dm0);
+        DataManagerImpl dm1 = (DataManagerImpl)DataManager.open("/tmp/TestDMFree", PageCache.PAGE_SIZE*10, tm0);
+        assert dm1.read(ua) == null;
+        for(int i = 0; i < uids.size(); i ++) {
+            assertData(dm1.read(uids.get(i)), rows.get(i));
+        }
+        assert dm1.pc.getPageNumber() == pages;
+        dm1.close();
+        tm0.close();
+
+        new File("/tmp/TestDMFree.db").delete();
+        Logger.remove("/tmp/TestDMFree");
+        new File("/tmp/TestDMFree.xid").delete();
+    }
+
+    // 检查点之后删除不再需要的日志段，活跃事务的第一条日志所在的段会保留下来
+    @Test
+    public void testLogSegmentTruncation() throws Exception {
+        String path = "/tmp/TestLogSegments";
+        TransactionManager tm0 = TransactionManager.create(path);
+        PageCache pc = PageCache.create(path, PageCache.PAGE_SIZE*10);
+        DataManagerImpl dm0 = new DataManagerImpl(pc, Logger.create(path, 4096), tm0);
+        dm0.initPageOne();
+
+        long xb = tm0.begin();
+        byte[] b = RandomUtil.randomBytes(60);
+        long ub = dm0.insert(xb, b);
+        List<Long> committed = new ArrayList<>();
+        List<byte[]> data = new ArrayList<>();
+        for(int i = 0; i < 200; i ++) {
+            long xid = tm0.begin();
+            byte[] d = RandomUtil.randomBytes(60);
+            committed.add(dm0.insert(xid, d));
+            data.add(d);
+            tm0.commit(xid);
+            if(i == 100) {
+                dm0.checkpoint();
+                // xb 仍然活跃，它的日志所在的第 0 段不能删除
+                assert new File(path + ".log.000000").exists();
+                tm0.commit(xb);
+            }
+        }
+        dm0.checkpoint();
+        assert !new File(path + ".log.000000").exists();
+
+        long xc = tm0.begin();
+        long uc = dm0.insert(xc, RandomUtil.randomBytes(60));
+        crash(dm0);
+
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*10, tm0);
+        assertData(dm1.read(ub), b);
+        for(int i = 0; i < committed.size(); i ++) {
+            assertData(dm1.read(committed.get(i)), data.get(i));
+        }
+        assert dm1.read(uc) == null;
+        dm1.close();
+        tm0.close();
+
+        new File(path + ".db").delete();
+        Logger.remove(path);
+        new File(path + ".xid").delete();
+    }
+
+    // 多个线程交错写入很多页后崩溃：已提交事务的插入和修改都被重做，未提交事务的被回滚，
+    // 恢复时每个事务的状态只查询一次
+    @Test
+    public void testParallelRecovery() throws Exception {
+        String path = "/tmp/TestParallelRecovery";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManagerImpl dm0 = (DataManagerImpl)DataManager.create(path, PageCache.PAGE_SIZE*20, tm0);
+        int threads = 8, perThread = 100;
+        Map<Long, byte[]> expected = new ConcurrentHashMap<>();
+        List<Long> rolledBack = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch cdl = new CountDownLatch(threads);
+        for(int t = 0; t < threads; t ++) {
+            new Thread(() -> {
+                try {
+                    long last = 0;
+                    for(int i = 0; i < perThread; i ++) {
+                        long xid = tm0.begin();
+                        byte[] data = RandomUtil.randomBytes(20 + i % 100);
+                        long uid = dm0.insert(xid, data);
+                        // 修改上一次插入的数据
+                        if(last != 0) {
+                            DataItem di = dm0.read(last);
+                            SubArray raw = di.data();
+                            byte[] newData = RandomUtil.randomBytes(raw.end - raw.start);
+                            di.before();
+                            System.arraycopy(newData, 0, raw.raw, raw.start, newData.length);
+                            di.after(xid);
+                            di.release();
+                            if(i % 10 != 9) expected.put(last, newData);
+                        }
+                        if(i % 10 == 9) {
+                            // 不提交，恢复时回滚；它修改过的数据之后不再修改，与 VM 的加锁规则一致
+                            rolledBack.add(uid);
+                            last = 0;
+                        } else {
+                            tm0.commit(xid);
+                            expected.put(uid, data);
+                            last = uid;
+                        }
+                    }
+                } catch (Exception e) {
+                    Panic.panic(e);
+                } finally {
+                    cdl.countDown();
+                }
+            }).start();
+        }
+        cdl.await();
+        crash(dm0);
+
+        AtomicInteger queries = new AtomicInteger(0);
+        TransactionManager counting = new TransactionManager() {
+            @Override public long begin() { return tm0.begin(); }
+            @Override public void commit(long xid) { tm0.commit(xid); }
+            @Override public void abort(long xid) { tm0.abort(xid); }
+            @Override public boolean isActive(long xid) { queries.incrementAndGet(); return tm0.isActive(xid); }
+            @Override public boolean isCommitted(long xid) { return tm0.isCommitted(xid); }
+            @Override public boolean isAborted(long xid) { return tm0.isAborted(xid); }
+            @Override public void backup(String path) { tm0.backup(path); }
+            @Override public void extend(long xid) { tm0.extend(xid); }
+            @Override public void sync() { tm0.sync(); }
+            @Override public void freeze(long xid) { tm0.freeze(xid); }
+            @Override public void close() { tm0.close(); }
+        };
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*20, counting);
+        assert queries.get() <= threads * perThread + 1;
+        for (Map.Entry<Long, byte[]> entry : expected.entrySet()) {
+            assertData(dm1.read(entry.getKey()), entry.getValue());
+        }
+        for (long uid : rolledBack) {
+            assert dm1.read(uid) == null;
+        }
+        dm1.close();
+        tm0.close();
+
+        new File(path + ".db").delete();
+        Logger.remove(path);
+        new File(path + ".xid").delete();
+    }
+
+    // 不设置关闭校验就关闭文件，模拟崩溃，下次打开时会触发恢复
+    // 页面写回时带上 PageLSN，恢复时不比 PageLSN 新的日志不再重做
+    @Test
+    public void testPageLsn() throws Exception {
+        String path = "/tmp/TestPageLsn";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManagerImpl dm0 = (DataManagerImpl)DataManager.create(path, PageCache.PAGE_SIZE*10, tm0);
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> rows = new ArrayList<>();
+        long xid = tm0.begin();
+        for(int i = 0; i < 200; i ++) {
+            byte[] row = RandomUtil.randomBytes(100);
+            uids.add(dm0.insert(xid, row));
+            rows.add(row);
+        }
+        tm0.commit(xid);
+        long ua = uids.get(0), ub = uids.get(uids.size() - 1);
+        assert Types.uidToPgno(ua) != Types.uidToPgno(ub);
+        crash(dm0);
+
+        // 直接改写文件中两页的数据，其中 b 所在的页把 PageLSN 清零，恢复时只有这一页会重做
+        try (RandomAccessFile raf = new RandomAccessFile(path + ".db", "rw")) {
+            for (long uid : new long[]{ua, ub}) {
+                long pageOffset = (long)(Types.uidToPgno(uid) - 1) * PageCache.PAGE_SIZE;
+                raf.seek(pageOffset + Types.uidToOffset(uid) + 3);
+                raf.write(new byte[100]);
+                if(uid == ub) {
+                    raf.seek(pageOffset + 2);
+                    raf.write(new byte[8]);
+                }
+            }
+        }
+
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*10, tm0);
+        assertData(dm1.read(ua), new byte[100]);
+        assertData(dm1.read(ub), rows.get(rows.size() - 1));
+        for(int i = 1; i < uids.size() - 1; i ++) {
+            assertData(dm1.read(uids.get(i)), rows.get(i));
+        }
+        dm1.close();
+        tm0.close();
+
+        new File(path + ".db").delete();
+        Logger.remove(path);
+        new File(path + ".xid").delete();
+    }
+
+    // 更新日志只记录改变的字节，重做和回滚都只改写这一段
+    @Test
+    public void testDeltaLog() throws Exception {
+        String path = "/tmp/TestDeltaLog";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManagerImpl dm0 = (DataManagerImpl)DataManager.create(path, PageCache.PAGE_SIZE*10, tm0);
+        long xid = tm0.begin();
+        byte[] a = RandomUtil.randomBytes(1000), b = RandomUtil.randomBytes(1000);
+        long ua = dm0.insert(xid, a), ub = dm0.insert(xid, b);
+        tm0.commit(xid);
+
+        // 已提交的事务改 a 中间的 8 个字节，未提交的事务改 b
+        long xa = tm0.begin();
+        long begin = dm0.logger.nextLsn();
+        DataItem di = dm0.read(ua);
+        di.before();
+        SubArray raw = di.data();
+        System.arraycopy(Parser.long2Byte(xa), 0, raw.raw, raw.start + 500, 8);
+        di.after(xa);
+        di.release();
+        assert dm0.logger.nextLsn() - begin < 64;
+        tm0.commit(xa);
+        byte[] a1 = Arrays.copyOf(a, a.length);
+        System.arraycopy(Parser.long2Byte(xa), 0, a1, 500, 8);
+
+        long xb = tm0.begin();
+        di = dm0.read(ub);
+        di.before();
+        raw = di.data();
+        Arrays.fill(raw.raw, raw.start + 100, raw.start + 200, (byte)0);
+        di.after(xb);
+        di.release();
+        crash(dm0);
+
+        // 清零 PageLSN 并把 a 改回插入时的内容，恢复时整页重做
+        try (RandomAccessFile raf = new RandomAccessFile(path + ".db", "rw")) {
+            long pageOffset = (long)(Types.uidToPgno(ua) - 1) * PageCache.PAGE_SIZE;
+            raf.seek(pageOffset + 2);
+            raf.write(new byte[8]);
+            raf.seek(pageOffset + Types.uidToOffset(ua) + 3);
+            raf.write(a);
+        }
+
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*10, tm0);
+        assertData(dm1.read(ua), a1);
+        assertData(dm1.read(ub), b);
+        dm1.close();
+        tm0.close();
+
+        new File(path + ".db").delete();
+        Logger.remove(path);
+        new File(path + ".xid").delete();
+    }
+
+    // 订阅者在另一个线程中跟随日志，把事务的改动暂存到提交时再应用到自己的副本，最终与数据库一致
+    @Test
+    public void testChangeStream() throws Exception {
+        String path = "/tmp/TestChangeStream";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE*10, tm0);
+        ChangeStream stream = dm0.subscribe(dm0.nextLsn());
+        int transactions = 50;
+        Map<Long, byte[]> replica = new ConcurrentHashMap<>();
+        Thread subscriber = new Thread(() -> {
+            try {
+                Map<Long, List<ChangeEvent>> pending = new HashMap<>();
+                int ended = 0;
+                while(ended < transactions) {
+                    ChangeEvent ce = stream.next(10 * 1000);
+                    assert ce != null;
+                    if(ce.type == ChangeEvent.INSERT || ce.type == ChangeEvent.UPDATE) {
+                        pending.computeIfAbsent(ce.xid, k -> new ArrayList<>()).add(ce);
+                        continue;
+                    }
+                    List<ChangeEvent> changes = pending.remove(ce.xid);
+                    ended ++;
+                    if(ce.type == ChangeEvent.ABORT || changes == null) continue;
+                    for (ChangeEvent c : changes) {
+                        if(c.type == ChangeEvent.INSERT) {
+                            replica.put(c.uid, c.raw);
+                            continue;
+                        }
+                        byte[] raw = replica.get(c.uid);
+                        for(int i = 0; i < c.offsets.length; i ++) {
+                            System.arraycopy(c.newRaws[i], 0, raw, c.offsets[i], c.newRaws[i].length);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+        });
+        subscriber.start();
+
+        Map<Long, byte[]> expected = new HashMap<>();
+        List<Long> aborted = new ArrayList<>();
+        long last = 0;
+        for(int i = 0; i < transactions; i ++) {
+            long xid = tm0.begin();
+            byte[] data = RandomUtil.randomBytes(50);
+            long uid = dm0.insert(xid, data);
+            if(i % 5 == 4) {
+                dm0.abort(xid);
+                aborted.add(uid);
+                continue;
+            }
+            // 改写上一个事务插入的数据的一部分
+            if(last != 0) {
+                DataItem di = dm0.read(last);
+                di.before();
+                SubArray raw = di.data();
+                Arrays.fill(raw.raw, raw.start + 10, raw.start + 20, (byte)i);
+                di.after(xid);
+                expected.put(last, Arrays.copyOfRange(raw.raw, raw.start, raw.end));
+                di.release();
+            }
+            dm0.commit(xid);
+            expected.put(uid, data);
+            last = uid;
+        }
+        subscriber.join();
+        stream.close();
+
+        assert replica.size() == expected.size();
+        for (Map.Entry<Long, byte[]> entry : expected.entrySet()) {
+            byte[] raw = replica.get(entry.getKey());
+            assertData(dm0.read(entry.getKey()), Arrays.copyOfRange(raw, 3, raw.length));
+            assert Arrays.equals(Arrays.copyOfRange(raw, 3, raw.length), entry.getValue());
+        }
+        for (long uid : aborted) {
+            assert !replica.containsKey(uid);
+        }
+        dm0.close();
+        tm0.close();
+
+        new File(path + ".db").delete();
+        Logger.remove(path);
+        new File(path + ".xid").delete();
+    }
+
+    // commitLog 落盘、TM 中的状态还没有改写时崩溃：恢复时补上提交；未提交的事务回滚时补写 abortLog
+    @Test
+    public void testCommitLogRecovery() throws Exception {
+        String path = "/tmp/TestCommitLogRecovery";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManagerImpl dm0 = (DataManagerImpl)DataManager.create(path, PageCache.PAGE_SIZE*10, tm0);
+        long start = dm0.nextLsn();
+        byte[] a = RandomUtil.randomBytes(60), b = RandomUtil.randomBytes(60);
+        long xa = tm0.begin();
+        long ua = dm0.insert(xa, a);
+        dm0.logger.log(Recover.commitLog(xa));
+        long xb = tm0.begin();
+        long ub = dm0.insert(xb, b);
+        // abortLog 已经落盘而 TM 中的状态丢失，补上回滚，与运行时一样不做物理回滚
+        byte[] c = RandomUtil.randomBytes(60);
+        long xc = tm0.begin();
+        long uc = dm0.insert(xc, c);
+        dm0.logger.log(Recover.abortLog(xc));
+        crash(dm0);
+        assert tm0.isActive(xa) && tm0.isActive(xc);
+
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*10, tm0);
+        assert tm0.isCommitted(xa);
+        assert tm0.isAborted(xb);
+        assert tm0.isAborted(xc);
+        assertData(dm1.read(ua), a);
+        assert dm1.read(ub) == null;
+        assertData(dm1.read(uc), c);
+
+        ChangeStream stream = dm1.subscribe(start);
+        byte[] types = new byte[6];
+        long[] xids = new long[6];
+        for(int i = 0; i < 6; i ++) {
+            ChangeEvent ce = stream.next(0);
+            types[i] = ce.type;
+            xids[i] = ce.xid;
+        }
+        assert Arrays.equals(types, new byte[]{ChangeEvent.INSERT, ChangeEvent.COMMIT, ChangeEvent.INSERT,
+                ChangeEvent.INSERT, ChangeEvent.ABORT, ChangeEvent.ABORT});
+        assert Arrays.equals(xids, new long[]{xa, xa, xb, xc, xc, xb});
+        assert stream.next(0) == null;
+        stream.close();
+        dm1.close();
+        tm0.close();
+
+        new File(path + ".db").delete();
+        Logger.remove(path);
+        new File(path + ".xid").delete();
+    }
+
+    // 一个事务：插入 a、b，并改写同一线程上一个事务插入的 a
+    private static class BackupTxn {
+        long xid, ua, ub;
+        byte[] a, b, newPrev;
+        BackupTxn prev;
+        volatile boolean inserted, committed;
+    }
+
+    // 写入线程不停提交事务，期间在线备份；打开备份时恢复到一致的状态：备份开始前提交的事务都在，
+    // 每个事务的修改要么全部可见要么全部回滚
+    @Test
+    public void testOnlineBackup() throws Exception {
+        String path = "/tmp/TestOnlineBackup", dest = "/tmp/TestOnlineBackupCopy";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManagerImpl dm0 = (DataManagerImpl)DataManager.create(path, PageCache.PAGE_SIZE*20, tm0);
+        for(int i = 0; i < 5000; i ++) {
+            dm0.insert(0, RandomUtil.randomBytes(200));
+        }
+        List<BackupTxn> txns = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger stop = new AtomicInteger(0);
+        int threads = 4;
+        CountDownLatch cdl = new CountDownLatch(threads);
+        for(int t = 0; t < threads; t ++) {
+            new Thread(() -> {
+                try {
+                    BackupTxn prev = null;
+                    while(stop.get() == 0) {
+                        BackupTxn txn = new BackupTxn();
+                        txn.xid = tm0.begin();
+                        txns.add(txn);
+                        txn.a = RandomUtil.randomBytes(40);
+                        txn.b = RandomUtil.randomBytes(40);
+                        txn.ua = dm0.insert(txn.xid, txn.a);
+                        txn.ub = dm0.insert(txn.xid, txn.b);
+                        txn.inserted = true;
+                        if(prev != null) {
+                            DataItem di = dm0.read(prev.ua);
+                            SubArray raw = di.data();
+                            txn.newPrev = RandomUtil.randomBytes(40);
+                            di.before();
+                            System.arraycopy(txn.newPrev, 0, raw.raw, raw.start, 40);
+                            di.after(txn.xid);
+                            di.release();
+                            txn.prev = prev;
+                        }
+                        dm0.commit(txn.xid);
+                        txn.committed = true;
+                        prev = txn;
+                    }
+                } catch (Exception e) {
+                    Panic.panic(e);
+                } finally {
+                    cdl.countDown();
+                }
+            }).start();
+        }
+        Thread.sleep(100);
+        List<BackupTxn> before = new ArrayList<>();
+        Set<BackupTxn> inserted = new HashSet<>();
+        synchronized (txns) {
+            for (BackupTxn txn : txns) {
+                if(txn.committed) before.add(txn);
+                if(txn.inserted) inserted.add(txn);
+            }
+        }
+        dm0.backup(dest);
+        int ended = txns.size();
+        Thread.sleep(100);
+        stop.set(1);
+        cdl.await();
+        dm0.close();
+        tm0.close();
+
+        // 复制事务状态之后才开始的事务不在副本中
+        long counter;
+        try (RandomAccessFile f = new RandomAccessFile(dest + TransactionManagerImpl.XID_SUFFIX, "r")) {
+            f.seek(TransactionManagerImpl.OF_COUNTER);
+            counter = f.readLong();
+        }
+        TransactionManager tm1 = TransactionManager.open(dest);
+        DataManager dm1 = DataManager.open(dest, PageCache.PAGE_SIZE*20, tm1);
+        for (BackupTxn txn : before) {
+            assert tm1.isCommitted(txn.xid);
+        }
+        // 事务 k 插入的 a 在事务 k + 1 提交时是改写后的内容，否则是插入时的内容
+        Map<BackupTxn, byte[]> expectedA = new HashMap<>();
+        for (BackupTxn txn : txns.subList(0, ended)) {
+            if(txn.xid > counter) {
+                continue;
+            }
+            if(!tm1.isCommitted(txn.xid)) {
+                // 备份开始后才插入的数据不一定在备份里，只检查之前插入的
+                if(inserted.contains(txn)) {
+                    assert dm1.read(txn.ua) == null && dm1.read(txn.ub) == null;
+                }
+                continue;
+            }
+            expectedA.putIfAbsent(txn, txn.a);
+            assertData(dm1.read(txn.ub), txn.b);
+            if(txn.prev != null) {
+                expectedA.put(txn.prev, txn.newPrev);
+            }
+        }
+        for (Map.Entry<BackupTxn, byte[]> entry : expectedA.entrySet()) {
+            assertData(dm1.read(entry.getKey().ua), entry.getValue());
+        }
+        dm1.close();
+        tm1.close();
+
+        for (String p : new String[]{path, dest}) {
+            new File(p + ".db").delete();
+            Logger.remove(p);
+            new File(p + ".xid").delete();
+        }
+    }
+
+    // 备份之后的日志段归档，误改一条数据之后把备份恢复到误操作之前：之前提交的事务都在，误操作和之后的事务都回滚
+    @Test
+    public void testPointInTimeRecovery() throws Exception {
+        String path = "/tmp/TestPITR", dest = "/tmp/TestPITRBackup", archive = "/tmp/TestPITRArchive";
+        TransactionManager tm0 = TransactionManager.create(path);
+        PageCache pc = PageCache.create(path, PageCache.PAGE_SIZE*10);
+        DataManagerImpl dm0 = new DataManagerImpl(pc, Logger.create(path, 4096), tm0);
+        dm0.initPageOne();
+        dm0.logger.archive(archive);
+
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> data = new ArrayList<>();
+        List<Long> xids = new ArrayList<>();
+        for(int i = 0; i < 300; i ++) {
+            if(i == 100) {
+                dm0.backup(dest);
+            }
+            long xid = tm0.begin();
+            byte[] d = RandomUtil.randomBytes(60);
+            uids.add(dm0.insert(xid, d));
+            data.add(d);
+            dm0.commit(xid);
+            xids.add(xid);
+            if(i % 50 == 0) {
+                dm0.checkpoint();
+            }
+        }
+        // 误操作：改写备份之前插入的一条数据
+        long bad = tm0.begin();
+        DataItem di = dm0.read(uids.get(0));
+        di.before();
+        Arrays.fill(di.data().raw, di.data().start, di.data().end, (byte)0);
+        di.after(bad);
+        di.release();
+        dm0.commit(bad);
+        for(int i = 0; i < 50; i ++) {
+            long xid = tm0.begin();
+            dm0.insert(xid, RandomUtil.randomBytes(60));
+            dm0.commit(xid);
+        }
+        dm0.checkpoint();
+        assert new File(archive + ".log.000000").exists();
+        dm0.close();
+        tm0.close();
+
+        RecoveryTarget target = RecoveryTarget.parse("xid:" + bad);
+        TransactionManager tm1 = TransactionManager.open(dest);
+        DataManager dm1 = DataManager.recoverTo(dest, PageCache.PAGE_SIZE*10, tm1, target, archive, path);
+        for(int i = 0; i < uids.size(); i ++) {
+            assert tm1.isCommitted(xids.get(i));
+            assertData(dm1.read(uids.get(i)), data.get(i));
+        }
+        assert tm1.isAborted(bad);
+        dm1.close();
+        tm1.close();
+
+        // 终点之后的日志已经丢弃，再次打开时状态不变
+        TransactionManager tm2 = TransactionManager.open(dest);
+        DataManager dm2 = DataManager.open(dest, PageCache.PAGE_SIZE*10, tm2);
+        assertData(dm2.read(uids.get(0)), data.get(0));
+        long xid = tm2.begin();
+        assert xid > bad;
+        byte[] d = RandomUtil.randomBytes(60);
+        long uid = dm2.insert(xid, d);
+        dm2.commit(xid);
+        assertData(dm2.read(uid), d);
+        dm2.close();
+        tm2.close();
+
+        for (String p : new String[]{path, dest}) {
+            new File(p + ".db").delete();
+            Logger.remove(p);
+            new File(p + ".xid").delete();
+        }
+        Logger.remove(archive);
+    }
+
+    private void crash(DataManagerImpl dm) {
+        dm.stopCheckpointer();
+        dm.logger.close();
+        dm.pc.close();
+    }
+
+    private void assertData(DataItem di, byte[] expected) {
+        assert di != null;
+        SubArray s = di.data();
+        assert Arrays.equals(Arrays.copyOfRange(s.raw, s.start, s.end), expected);
+        di.release();
+    }
 }
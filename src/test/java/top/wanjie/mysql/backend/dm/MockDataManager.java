@@ -4,6 +4,7 @@ package top.wanjie.mysql.backend.dm;
 import top.wanjie.mysql.backend.common.SubArray;
 import top.wanjie.mysql.backend.dm.dataItem.DataItem;
 import top.wanjie.mysql.backend.dm.dataItem.MockDataItem;
+import top.wanjie.mysql.backend.dm.pageCache.PageCache;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -52,6 +53,41 @@ public class MockDataManager implements DataManager {
         }
     }
 
+    @Override
+    public boolean free(DataItem di) throws Exception {
+        lock.lock();
+        try {
+            cache.remove(di.getUid());
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void commit(long xid) {}
+
+    @Override
+    public void abort(long xid) {}
+
+    @Override
+    public ChangeStream subscribe(long lsn) {
+        return null;
+    }
+
+    @Override
+    public long nextLsn() {
+        return 0;
+    }
+
+    @Override
+    public void backup(String path) {}
+
+    @Override
+    public int getPageSize() {
+        return PageCache.PAGE_SIZE;
+    }
+
     @Override
     public void close() {}
     
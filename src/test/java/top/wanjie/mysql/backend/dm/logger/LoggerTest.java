@@ -1,8 +1,30 @@
 package top.wanjie.mysql.backend.dm.logger;
 
+import com.google.common.primitives.Bytes;
 import org.junit.Test;
+import top.wanjie.mysql.backend.dm.Recover;
+import top.wanjie.mysql.backend.utils.Panic;
+import top.wanjie.mysql.backend.utils.Parser;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class LoggerTest {
     @Test
@@ -43,6 +65,362 @@ public class LoggerTest {
 
         lg.close();
 
-        assert new File("/tmp/logger_test.log").delete();
+        Logger.remove("/tmp/logger_test");
+    }
+
+    // 每次 force 都睡眠一段时间，模拟磁盘刷盘的延迟，并统计 force 的次数
+    static class SlowForceChannel extends FileChannel {
+        private final FileChannel fc;
+        private final long delayMs;
+        AtomicInteger forces = new AtomicInteger(0);
+
+        SlowForceChannel(FileChannel fc, long delayMs) {
+            this.fc = fc;
+            this.delayMs = delayMs;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            forces.incrementAndGet();
+            try {
+                Thread.sleep(delayMs);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            fc.force(metaData);
+        }
+
+        @Override public int read(ByteBuffer dst) throws IOException { return fc.read(dst); }
+        @Override public int read(ByteBuffer dst, long position) throws IOException { return fc.read(dst, position); }
+        @Override public long read(ByteBuffer[] dsts, int offset, int length) throws IOException { return fc.read(dsts, offset, length); }
+        @Override public int write(ByteBuffer src) throws IOException { return fc.write(src); }
+        @Override public int write(ByteBuffer src, long position) throws IOException { return fc.write(src, position); }
+        @Override public long write(ByteBuffer[] srcs, int offset, int length) throws IOException { return fc.write(srcs, offset, length); }
+        @Override public long position() throws IOException { return fc.position(); }
+        @Override public FileChannel position(long newPosition) throws IOException { fc.position(newPosition); return this; }
+        @Override public long size() throws IOException { return fc.size(); }
+        @Override public FileChannel truncate(long size) throws IOException { fc.truncate(size); return this; }
+        @Override public long transferTo(long position, long count, WritableByteChannel target) throws IOException { return fc.transferTo(position, count, target); }
+        @Override public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException { return fc.transferFrom(src, position, count); }
+        @Override public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException { return fc.map(mode, position, size); }
+        @Override public FileLock lock(long position, long size, boolean shared) throws IOException { return fc.lock(position, size, shared); }
+        @Override public FileLock tryLock(long position, long size, boolean shared) throws IOException { return fc.tryLock(position, size, shared); }
+        @Override protected void implCloseChannel() throws IOException { fc.close(); }
+    }
+
+    // 日志段的文件都换成 SlowForceChannel，共用一个 force 计数
+    private static LoggerImpl slowLogger(String path, AtomicInteger forces) {
+        LoggerImpl lg = new LoggerImpl(path, LoggerImpl.DEFAULT_SEGMENT_SIZE) {
+            @Override
+            FileChannel openChannel(Path file, OpenOption... options) throws IOException {
+                SlowForceChannel fc = new SlowForceChannel(super.openChannel(file, options), 5);
+                fc.forces = forces;
+                return fc;
+            }
+        };
+        lg.initEmpty();
+        return lg;
+    }
+
+    // 并发写日志时多条日志共用一次 force，吞吐随并发数提高，且每条日志都能按返回的 LSN 读回
+    @Test
+    public void testGroupCommit() throws Exception {
+        AtomicInteger forces = new AtomicInteger(0);
+        LoggerImpl lg = slowLogger("/tmp/logger_group_test", forces);
+        int serial = 40;
+        for(int i = 0; i < serial; i ++) {
+            lg.log(("s" + i).getBytes());
+        }
+        assert forces.get() == serial;
+
+        int threads = 16, perThread = 40;
+        Map<Long, String> written = new ConcurrentHashMap<>();
+        CountDownLatch start = new CountDownLatch(1), done = new CountDownLatch(threads);
+        for(int t = 0; t < threads; t ++) {
+            int id = t;
+            new Thread(() -> {
+                try {
+                    start.await();
+                    for(int i = 0; i < perThread; i ++) {
+                        String s = id + "-" + i;
+                        written.put(lg.log(s.getBytes()), s);
+                    }
+                } catch (Exception e) {
+                    Panic.panic(e);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        forces.set(0);
+        start.countDown();
+        done.await();
+        int total = threads * perThread;
+        assert written.size() == total;
+        // 每次 fsync 平均带走 4 条以上日志
+        assert forces.get() < total / 4;
+        assert lg.nextLsn() == new File("/tmp/logger_group_test.log.000000").length();
+        lg.close();
+
+        Logger rl = Logger.open("/tmp/logger_group_test");
+        rl.rewind();
+        for(int i = 0; i < serial; i ++) {
+            assert ("s" + i).equals(new String(rl.next()));
+        }
+        int read = 0;
+        while(true) {
+            long lsn = rl.position();
+            byte[] log = rl.next();
+            if(log == null) break;
+            assert new String(log).equals(written.get(lsn));
+            read ++;
+        }
+        assert read == total;
+        rl.close();
+
+        Logger.remove("/tmp/logger_group_test");
+    }
+
+    // 写坏的尾部只影响它自己和之后的日志，之前的日志照常读出，下一条日志从坏尾处开始写
+    @Test
+    public void testTornTail() throws Exception {
+        Logger lg = Logger.create("/tmp/logger_torn_test");
+        lg.log("aaa".getBytes());
+        long bad = lg.log("bbb".getBytes());
+        lg.log("ccc".getBytes());
+        lg.close();
+
+        // 改坏第二条日志的一个字节
+        RandomAccessFile raf = new RandomAccessFile("/tmp/logger_torn_test.log.000000", "rw");
+        raf.seek(raf.length() - 20);
+        raf.write('x');
+        raf.close();
+
+        lg = Logger.open("/tmp/logger_torn_test");
+        assert !lg.isLegacy();
+        assert lg.nextLsn() == bad;
+        assert new File("/tmp/logger_torn_test.log.000000").length() == bad;
+        assert lg.log("ddd".getBytes()) == bad;
+        lg.rewind();
+        assert "aaa".equals(new String(lg.next()));
+        assert "ddd".equals(new String(lg.next()));
+        assert lg.next() == null;
+        lg.close();
+
+        // 只写了一半的日志同样被截掉
+        raf = new RandomAccessFile("/tmp/logger_torn_test.log.000000", "rw");
+        long end = raf.length();
+        raf.setLength(end + 5);
+        raf.close();
+        lg = Logger.open("/tmp/logger_torn_test");
+        assert new File("/tmp/logger_torn_test.log.000000").length() == end;
+        assert lg.nextLsn() == end;
+        lg.close();
+
+        Logger.remove("/tmp/logger_torn_test");
+    }
+
+    private static byte[] legacyLog(byte[] data) {
+        int checkSum = 0;
+        for (byte b : data) {
+            checkSum = checkSum * 13331 + b;
+        }
+        return Bytes.concat(Parser.int2Byte(data.length), Parser.int2Byte(checkSum), data);
+    }
+
+    // 旧格式的日志仍能读出，升级后换成新格式的空日志
+    @Test
+    public void testLegacyLog() throws Exception {
+        Logger.remove("/tmp/logger_legacy_test");
+        RandomAccessFile raf = new RandomAccessFile("/tmp/logger_legacy_test.log", "rw");
+        byte[] logs = Bytes.concat(legacyLog("aaa".getBytes()), legacyLog("bbb".getBytes()));
+        int xCheckSum = 0;
+        for (byte b : logs) {
+            xCheckSum = xCheckSum * 13331 + b;
+        }
+        raf.write(Parser.int2Byte(xCheckSum));
+        raf.write(logs);
+        raf.close();
+
+        Logger lg = Logger.open("/tmp/logger_legacy_test");
+        assert lg.isLegacy();
+        lg.rewind();
+        assert "aaa".equals(new String(lg.next()));
+        assert "bbb".equals(new String(lg.next()));
+        assert lg.next() == null;
+
+        lg = Logger.upgrade(lg, "/tmp/logger_legacy_test");
+        assert !lg.isLegacy();
+        assert !new File("/tmp/logger_legacy_test.log").exists();
+        lg.rewind();
+        assert lg.next() == null;
+        long lsn = lg.log("ccc".getBytes());
+        lg.close();
+
+        lg = Logger.open("/tmp/logger_legacy_test");
+        assert !lg.isLegacy();
+        lg.seek(lsn);
+        assert "ccc".equals(new String(lg.next()));
+        lg.close();
+
+        Logger.remove("/tmp/logger_legacy_test");
+    }
+
+    // 日志写满一段时切换到下一段，截断之后从剩下的最早一段读起
+    @Test
+    public void testSegments() {
+        Logger.remove("/tmp/logger_segment_test");
+        Logger lg = Logger.create("/tmp/logger_segment_test", 1024);
+        List<Long> lsns = new ArrayList<>();
+        for(int i = 0; i < 200; i ++) {
+            lsns.add(lg.log(new byte[i % 50 + 1]));
+        }
+        lg.close();
+        int segments = (int)(lsns.get(199) / 1024) + 1;
+        assert segments > 5;
+        for(int i = 0; i < segments; i ++) {
+            assert new File(String.format("/tmp/logger_segment_test.log.%06d", i)).length() <= 1024;
+        }
+
+        lg = Logger.open("/tmp/logger_segment_test");
+        lg.rewind();
+        for(int i = 0; i < 200; i ++) {
+            assert lg.position() <= lsns.get(i);
+            byte[] log = lg.next();
+            assert log.length == i % 50 + 1;
+            assert lg.position() == lsns.get(i) + log.length + 16;
+        }
+        assert lg.next() == null;
+
+        // 截断到第 3 段，之前的段被删除
+        long lsn = 0;
+        for (long l : lsns) {
+            if(l / 1024 == 3) {
+                lsn = l;
+                break;
+            }
+        }
+        lg.truncateBefore(lsn);
+        lg.close();
+        assert !new File("/tmp/logger_segment_test.log.000002").exists();
+        assert new File("/tmp/logger_segment_test.log.000003").exists();
+
+        lg = Logger.open("/tmp/logger_segment_test");
+        lg.rewind();
+        assert lg.position() <= lsn;
+        int i = lsns.indexOf(lsn);
+        while(true) {
+            byte[] log = lg.next();
+            if(log == null) break;
+            assert log.length == i % 50 + 1;
+            i ++;
+        }
+        assert i == 200;
+        long next = lg.log("fff".getBytes());
+        assert next >= lsns.get(199);
+        lg.close();
+
+        Logger.remove("/tmp/logger_segment_test");
+    }
+
+    // 跟随读取在写入之前开始，等待新日志落盘并跨段读到全部日志；读到末尾时按超时返回，Logger 关闭后立即返回
+    @Test
+    public void testTail() throws Exception {
+        Logger.remove("/tmp/logger_tail_test");
+        Logger lg = Logger.create("/tmp/logger_tail_test", 1024);
+        LogTailer tailer = lg.tail(lg.nextLsn());
+        assert tailer.next(10) == null;
+
+        int n = 300;
+        List<Long> lsns = new ArrayList<>();
+        Thread writer = new Thread(() -> {
+            for(int i = 0; i < n; i ++) {
+                lsns.add(lg.log(new byte[]{(byte)i}));
+                if(i % 50 == 0) {
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        Panic.panic(e);
+                    }
+                }
+            }
+        });
+        writer.start();
+        for(int i = 0; i < n; i ++) {
+            ByteBuffer log = tailer.next(10 * 1000);
+            assert log != null && log.remaining() == 1 && log.get() == (byte)i;
+        }
+        writer.join();
+        assert lsns.get(n - 1) / 1024 > 3;
+        assert tailer.lsn() == lsns.get(n - 1);
+        assert tailer.position() == lg.nextLsn();
+        long start = System.currentTimeMillis();
+        assert tailer.next(50) == null;
+        assert System.currentTimeMillis() - start >= 50;
+
+        // 从中间一条日志开始读
+        LogTailer from = lg.tail(lsns.get(100));
+        ByteBuffer log = from.next(0);
+        assert from.lsn() == lsns.get(100) && log.get() == (byte)100;
+        from.close();
+
+        Thread closer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+            lg.close();
+        });
+        closer.start();
+        start = System.currentTimeMillis();
+        assert tailer.next(10 * 1000) == null;
+        assert System.currentTimeMillis() - start < 5 * 1000;
+        closer.join();
+        tailer.close();
+
+        Logger.remove("/tmp/logger_tail_test");
+    }
+
+    // 当前线程分配的字节数
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // 每条更新日志在追加和回放时分配的字节数：追加时日志直接写进批次缓冲区，回放时只是读缓冲上的视图
+    @Test
+    public void testAllocationPerUpdate() {
+        Logger.remove("/tmp/logger_alloc_test");
+        Logger lg = Logger.create("/tmp/logger_alloc_test");
+        byte[] oldRaw = new byte[100], newRaw = new byte[100];
+        Arrays.fill(newRaw, (byte)1);
+        int warmup = 2000, n = 2000;
+        for(int i = 0; i < warmup; i ++) {
+            lg.log(Recover.updateLog(i, i, oldRaw, newRaw));
+        }
+        long begin = allocatedBytes();
+        for(int i = 0; i < n; i ++) {
+            lg.log(Recover.updateLog(i, i, oldRaw, newRaw));
+        }
+        long appendBytes = (allocatedBytes() - begin) / n;
+
+        lg.rewind();
+        for(int i = 0; i < warmup; i ++) {
+            lg.nextRecord();
+        }
+        begin = allocatedBytes();
+        for(int i = 0; i < n; i ++) {
+            ByteBuffer log = lg.nextRecord();
+            assert log.remaining() == 21 + 200;
+        }
+        long replayBytes = (allocatedBytes() - begin) / n;
+        assert lg.nextRecord() == null;
+        // 一条更新日志有 237 字节，追加和回放分配的都远小于日志本身
+        assert appendBytes < 100;
+        assert replayBytes < 100;
+        lg.close();
+
+        Logger.remove("/tmp/logger_alloc_test");
     }
 }
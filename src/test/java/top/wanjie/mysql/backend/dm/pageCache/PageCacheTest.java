@@ -7,6 +7,14 @@ import top.wanjie.mysql.backend.utils.RandomUtil;
 
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Random;
@@ -43,6 +51,50 @@ public class PageCacheTest {
         assert new File("/tmp/pcacher_simple_test0.db").delete();
     }
 
+    @Test
+    public void testPageCacheEvict() throws Exception {
+        PageCache pc = PageCache.create("/tmp/pcacher_evict_test", PageCache.PAGE_SIZE * 10);
+        for(int i = 0; i < 30; i ++) {
+            int pgno = pc.newPage(new byte[PageCache.PAGE_SIZE]);
+            Page pg = pc.getPage(pgno);
+            pg.getData()[0] = (byte)pgno;
+            pg.setDirty(true);
+            pg.release();
+        }
+
+        // 未被引用的热页面驻留在缓冲池中
+        Page hot = pc.getPage(30);
+        hot.release();
+        assert hot == pc.getPage(30);
+        hot.release();
+
+        // 全部页面都被引用时才会缓存满
+        Page[] pinned = new Page[10];
+        for(int i = 0; i < 10; i ++) {
+            pinned[i] = pc.getPage(i + 1);
+        }
+        Exception err = null;
+        try {
+            pc.getPage(11);
+        } catch (Exception e) {
+            err = e;
+        }
+        assert err != null;
+        for(Page pg : pinned) {
+            pg.release();
+        }
+        pc.close();
+
+        pc = PageCache.open("/tmp/pcacher_evict_test", PageCache.PAGE_SIZE * 10);
+        for(int i = 1; i <= 30; i ++) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[0] == (byte)i;
+            pg.release();
+        }
+        pc.close();
+        assert new File("/tmp/pcacher_evict_test.db").delete();
+    }
+
     private PageCache pc1;
     private CountDownLatch cdl1;
     private AtomicInteger noPages1;
@@ -93,6 +145,268 @@ public class PageCacheTest {
     }
 
 
+    @Test
+    public void testFrameReuse() throws Exception {
+        PageCache pc = PageCache.create("/tmp/pcacher_frame_test", PageCache.PAGE_SIZE * 10);
+        for(int i = 1; i <= 100; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            tmp[PageCache.PAGE_SIZE - 1] = (byte)i;
+            pc.newPage(tmp);
+        }
+        Random r = new Random(1);
+        for(int i = 0; i < 10000; i ++) {
+            int pgno = r.nextInt(100) + 1;
+            Page pg = pc.getPage(pgno);
+            // 复用的页帧被新页面完整覆盖
+            assert pg.getData()[0] == (byte)pgno;
+            assert pg.getData()[PageCache.PAGE_SIZE - 1] == (byte)pgno;
+            pg.release();
+        }
+        // 上万次缺页只分配了缓冲池容量那么多的页帧
+        assert ((PageCacheImpl)pc).frames.allocated() <= 10;
+        pc.close();
+
+        assert new File("/tmp/pcacher_frame_test.db").delete();
+    }
+
+    @Test
+    public void testMmapPageCache() throws Exception {
+        PageCache pc = PageCache.create("/tmp/pcacher_mmap_test", PageCache.PAGE_SIZE * 50);
+        pc.close();
+        pc = PageCache.open("/tmp/pcacher_mmap_test", PageCache.PAGE_SIZE * 50, true);
+        for(int i = 0; i < 100; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            int pgno = pc.newPage(tmp);
+            Page pg = pc.getPage(pgno);
+            pg.lock();
+            pg.getData()[1] = (byte)i;
+            pg.setDirty(true);
+            pg.unlock();
+            pg.release();
+        }
+        pc.close();
+        // 关闭后文件截断回实际页数
+        assert new File("/tmp/pcacher_mmap_test.db").length() == 100L * PageCache.PAGE_SIZE;
+
+        pc = PageCache.open("/tmp/pcacher_mmap_test", PageCache.PAGE_SIZE * 50);
+        for(int i = 1; i <= 100; i ++) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[0] == (byte)(i-1);
+            assert pg.getData()[1] == (byte)(i-1);
+            pg.release();
+        }
+        pc.close();
+
+        assert new File("/tmp/pcacher_mmap_test.db").delete();
+    }
+
+    // 随机点读：缓冲池远小于文件，绝大多数读取都会未命中，两种模式读出的内容都正确
+    @Test
+    public void testMmapRandomRead() throws Exception {
+        int pages = 4000, reads = 20000;
+        PageCache pc = PageCache.create("/tmp/pcacher_mmap_random", PageCache.PAGE_SIZE * 50);
+        for(int i = 1; i <= pages; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            pc.newPage(tmp);
+        }
+        pc.close();
+
+        for(boolean mmap : new boolean[]{false, true}) {
+            pc = PageCache.open("/tmp/pcacher_mmap_random", PageCache.PAGE_SIZE * 50, mmap);
+            Random r = new Random(1);
+            for(int i = 0; i < reads; i ++) {
+                int pgno = r.nextInt(pages) + 1;
+                Page pg = pc.getPage(pgno);
+                assert pg.getData()[0] == (byte)pgno;
+                pg.release();
+            }
+            pc.close();
+        }
+
+        assert new File("/tmp/pcacher_mmap_random.db").delete();
+    }
+
+    // 每次读取都人为延迟，记录读取次数和同时进行中的读取数
+    static class SlowReadChannel extends FileChannel {
+        private final FileChannel fc;
+        private final long delayMs;
+        final AtomicInteger reads = new AtomicInteger(0);
+        final AtomicInteger inFlight = new AtomicInteger(0);
+        final AtomicInteger maxInFlight = new AtomicInteger(0);
+
+        SlowReadChannel(FileChannel fc, long delayMs) {
+            this.fc = fc;
+            this.delayMs = delayMs;
+        }
+
+        private <T> T slow(IOCall<T> call) throws IOException {
+            reads.incrementAndGet();
+            int n = inFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(n, Math::max);
+            try {
+                Thread.sleep(delayMs);
+                return call.run();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        interface IOCall<T> {
+            T run() throws IOException;
+        }
+
+        @Override public int read(ByteBuffer dst) throws IOException { return slow(() -> fc.read(dst)); }
+        @Override public int read(ByteBuffer dst, long position) throws IOException { return slow(() -> fc.read(dst, position)); }
+        @Override public long read(ByteBuffer[] dsts, int offset, int length) throws IOException { return fc.read(dsts, offset, length); }
+        @Override public int write(ByteBuffer src) throws IOException { return fc.write(src); }
+        @Override public int write(ByteBuffer src, long position) throws IOException { return fc.write(src, position); }
+        @Override public long write(ByteBuffer[] srcs, int offset, int length) throws IOException { return fc.write(srcs, offset, length); }
+        @Override public long position() throws IOException { return fc.position(); }
+        @Override public FileChannel position(long newPosition) throws IOException { fc.position(newPosition); return this; }
+        @Override public long size() throws IOException { return fc.size(); }
+        @Override public FileChannel truncate(long size) throws IOException { fc.truncate(size); return this; }
+        @Override public void force(boolean metaData) throws IOException { fc.force(metaData); }
+        @Override public long transferTo(long position, long count, WritableByteChannel target) throws IOException { return fc.transferTo(position, count, target); }
+        @Override public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException { return fc.transferFrom(src, position, count); }
+        @Override public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException { return fc.map(mode, position, size); }
+        @Override public FileLock lock(long position, long size, boolean shared) throws IOException { return fc.lock(position, size, shared); }
+        @Override public FileLock tryLock(long position, long size, boolean shared) throws IOException { return fc.tryLock(position, size, shared); }
+        @Override protected void implCloseChannel() throws IOException { fc.close(); }
+    }
+
+    // 互不相关的页面未命中不再互相排队，读取可以同时进行
+    @Test
+    public void testParallelMiss() throws Exception {
+        PageCache pc = PageCache.create("/tmp/pcacher_parallel_test", PageCache.PAGE_SIZE * 50);
+        for(int i = 1; i <= 16; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            pc.newPage(tmp);
+        }
+        pc.close();
+
+        RandomAccessFile raf = new RandomAccessFile("/tmp/pcacher_parallel_test.db", "rw");
+        SlowReadChannel fc = new SlowReadChannel(raf.getChannel(), 20);
+        PageCacheImpl spc = new PageCacheImpl(raf, fc, 50);
+        int threads = 16;
+        CountDownLatch start = new CountDownLatch(1), done = new CountDownLatch(threads);
+        AtomicInteger wrong = new AtomicInteger(0);
+        for(int i = 1; i <= threads; i ++) {
+            int pgno = i;
+            new Thread(() -> {
+                try {
+                    start.await();
+                    Page pg = spc.getPage(pgno);
+                    if(pg.getData()[0] != (byte)pgno) wrong.incrementAndGet();
+                    pg.release();
+                } catch (Exception e) {
+                    Panic.panic(e);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        spc.close();
+
+        assert wrong.get() == 0;
+        assert fc.maxInFlight.get() > 1;
+        assert new File("/tmp/pcacher_parallel_test.db").delete();
+    }
+
+    // 冷缓存顺序扫描：连续缺页之后由预读线程用大块读取装入后续页面
+    @Test
+    public void testSequentialReadAhead() throws Exception {
+        int pages = 320;
+        PageCache pc = PageCache.create("/tmp/pcacher_readahead_test", PageCache.PAGE_SIZE * 50);
+        for(int i = 1; i <= pages; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            pc.newPage(tmp);
+        }
+        pc.close();
+
+        RandomAccessFile raf = new RandomAccessFile("/tmp/pcacher_readahead_test.db", "rw");
+        SlowReadChannel fc = new SlowReadChannel(raf.getChannel(), 5);
+        PageCacheImpl spc = new PageCacheImpl(raf, fc, 100);
+        for(int i = 1; i <= pages; i ++) {
+            Page pg = spc.getPage(i);
+            assert pg.getData()[0] == (byte)i;
+            pg.release();
+        }
+        spc.close();
+
+        // 逐页读取需要 320 次读
+        assert fc.reads.get() < pages / 4;
+
+        // 显式提示
+        raf = new RandomAccessFile("/tmp/pcacher_readahead_test.db", "rw");
+        fc = new SlowReadChannel(raf.getChannel(), 5);
+        spc = new PageCacheImpl(raf, fc, 100);
+        spc.prefetch(101, 40);
+        for(int i = 101; i <= 140; i ++) {
+            Page pg = spc.getPage(i);
+            assert pg.getData()[0] == (byte)i;
+            pg.release();
+        }
+        spc.close();
+        assert fc.reads.get() <= 4;
+
+        assert new File("/tmp/pcacher_readahead_test.db").delete();
+    }
+
+    // 新页面写进文件之前预读不会读到它，分配者随后取到的是初始内容而不是预读缓存的空页
+    @Test
+    public void testReadAheadSkipsUnwrittenPage() throws Exception {
+        PageCache pc = PageCache.create("/tmp/pcacher_unwritten_test", PageCache.PAGE_SIZE * 50);
+        for(int i = 1; i <= 4; i ++) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        pc.close();
+
+        CountDownLatch writing = new CountDownLatch(1), resume = new CountDownLatch(1);
+        long blocked = 4L * PageCache.PAGE_SIZE;
+        RandomAccessFile raf = new RandomAccessFile("/tmp/pcacher_unwritten_test.db", "rw");
+        SlowReadChannel fc = new SlowReadChannel(raf.getChannel(), 0) {
+            @Override
+            public int write(ByteBuffer src, long position) throws IOException {
+                if(position == blocked) {
+                    writing.countDown();
+                    try {
+                        resume.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                return super.write(src, position);
+            }
+        };
+        PageCacheImpl spc = new PageCacheImpl(raf, fc, 100);
+        byte[] init = new byte[PageCache.PAGE_SIZE];
+        init[0] = 5;
+        AtomicInteger pgno = new AtomicInteger(0);
+        Thread allocator = new Thread(() -> pgno.set(spc.newPage(init)));
+        allocator.start();
+        writing.await();
+        spc.prefetch(5, 1);
+        Thread.sleep(100);
+        resume.countDown();
+        allocator.join();
+
+        assert pgno.get() == 5;
+        Page pg = spc.getPage(5);
+        assert pg.getData()[0] == 5;
+        pg.release();
+        spc.close();
+        assert new File("/tmp/pcacher_unwritten_test.db").delete();
+    }
+
     private PageCache pc2, mpc;
     private CountDownLatch cdl2;
     private AtomicInteger noPages2;
@@ -168,7 +482,7 @@ public class PageCacheTest {
                 }
                 byte[] newData = RandomUtil.randomBytes(PageCache.PAGE_SIZE);
                 
-                pg.lock();
+                pg.lock(); mpg.lock();
                 mpg.setDirty(true);
                 for(int j = 0; j < PageCache.PAGE_SIZE; j ++) {
                     mpg.getData()[j] = newData[j];
@@ -177,7 +491,7 @@ public class PageCacheTest {
                 for(int j = 0; j < PageCache.PAGE_SIZE; j ++) {
                     pg.getData()[j] = newData[j];
                 }
-                pg.unlock();
+                mpg.unlock(); pg.unlock();
                 pg.release();
                 mpg.release();
             }
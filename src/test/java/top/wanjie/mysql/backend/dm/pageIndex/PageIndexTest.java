@@ -6,7 +6,7 @@ import top.wanjie.mysql.backend.dm.pageCache.PageCache;
 public class PageIndexTest {
     @Test
     public void testPageIndex() {
-        PageIndex pIndex = new PageIndex();
+        PageIndex pIndex = new PageIndex(PageCache.PAGE_SIZE);
         int threshold = PageCache.PAGE_SIZE / 20;
         for(int i = 0; i < 20; i ++) {
             pIndex.add(i, i*threshold);
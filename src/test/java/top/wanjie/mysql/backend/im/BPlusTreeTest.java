@@ -2,12 +2,16 @@ package top.wanjie.mysql.backend.im;
 
 import org.junit.Test;
 import top.wanjie.mysql.backend.dm.DataManager;
+import top.wanjie.mysql.backend.dm.logger.Logger;
 import top.wanjie.mysql.backend.dm.pageCache.PageCache;
 import top.wanjie.mysql.backend.tm.MockTransactionManager;
 import top.wanjie.mysql.backend.tm.TransactionManager;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class BPlusTreeTest {
     @Test
@@ -38,6 +42,123 @@ public class BPlusTreeTest {
         }
 
         assert new File("/tmp/TestTreeSingle5.db").delete();
-        assert new File("/tmp/TestTreeSingle5.log").delete();
+        Logger.remove("/tmp/TestTreeSingle5");
+    }
+
+    @Test
+    public void testTreePageSizes() throws Exception {
+        int[] sizes = {PageCache.PAGE_SIZE / 2, PageCache.PAGE_SIZE * 8};
+        for (int pageSize : sizes) {
+            TransactionManager tm = new MockTransactionManager();
+            DataManager dm = DataManager.create("/tmp/TestTreePageSize", pageSize*20L, tm, pageSize);
+
+            long root = BPlusTree.create(dm);
+            BPlusTree tree = BPlusTree.load(root, dm);
+            // 节点扇出随页面大小变化，插入若干个节点的关键字保证发生分裂
+            int lim = tree.balance * 6;
+            for(int i = 1; i < lim; i ++) {
+                tree.insert(i, i);
+            }
+            for(int i = 1; i < lim; i += 7) {
+                List<Long> uids = tree.search(i);
+                assert uids.size() == 1;
+                assert uids.get(0) == i;
+            }
+            assert tree.searchRange(1, lim).size() == lim - 1;
+            dm.close();
+
+            assert new File("/tmp/TestTreePageSize.db").delete();
+            Logger.remove("/tmp/TestTreePageSize");
+        }
+    }
+
+    @Test
+    public void testTreeDelete() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeDelete", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+        int lim = 300;
+        // 每个 key 对应两个 uid
+        for(int i = 1; i < lim; i ++) {
+            tree.insert(i, i);
+            tree.insert(i, i + lim);
+        }
+        for(int i = 1; i < lim; i += 2) {
+            assert tree.delete(i, i);
+            assert !tree.delete(i, i);
+        }
+        for(int i = 1; i < lim; i ++) {
+            List<Long> uids = tree.search(i);
+            if(i % 2 == 1) {
+                assert uids.size() == 1 && uids.get(0) == i + lim;
+            } else {
+                assert uids.size() == 2;
+            }
+        }
+        // 删空的叶子节点之后仍然可以插入
+        for(int i = 1; i < lim; i ++) {
+            tree.delete(i, i);
+            tree.delete(i, i + lim);
+        }
+        assert tree.searchRange(0, Long.MAX_VALUE).isEmpty();
+        for(int i = lim - 1; i > 0; i --) {
+            tree.insert(i, i);
+        }
+        assert tree.searchRange(0, Long.MAX_VALUE).size() == lim - 1;
+        dm.close();
+
+        assert new File("/tmp/TestTreeDelete.db").delete();
+        Logger.remove("/tmp/TestTreeDelete");
+    }
+
+    // 页面中留有能放下节点的空洞时多个线程同时分裂，分裂出的节点复用空洞也不会互相等待
+    @Test
+    public void testConcurrentSplit() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeConcurrentSplit", PageCache.PAGE_SIZE*40, tm);
+        List<Long> uids = new ArrayList<>();
+        for(int i = 0; i < 60; i ++) {
+            uids.add(dm.insert(0, new byte[Node.nodeSize(Node.balance(PageCache.PAGE_SIZE)) + 500]));
+        }
+        for(int i = 0; i < uids.size(); i += 2) {
+            assert dm.free(dm.read(uids.get(i)));
+        }
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+        int threads = 8, perThread = 500;
+        AtomicInteger errors = new AtomicInteger(0);
+        CountDownLatch start = new CountDownLatch(1), done = new CountDownLatch(threads);
+        for(int t = 0; t < threads; t ++) {
+            int id = t;
+            new Thread(() -> {
+                try {
+                    start.await();
+                    for(int i = 0; i < perThread; i ++) {
+                        long key = (long)i * threads + id + 1;
+                        tree.insert(key, key);
+                    }
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        assert errors.get() == 0;
+        int total = threads * perThread;
+        for(int i = 1; i <= total; i += 13) {
+            List<Long> found = tree.search(i);
+            assert found.size() == 1 && found.get(0) == i;
+        }
+        assert tree.searchRange(1, total).size() == total;
+        dm.close();
+
+        assert new File("/tmp/TestTreeConcurrentSplit.db").delete();
+        Logger.remove("/tmp/TestTreeConcurrentSplit");
     }
 }
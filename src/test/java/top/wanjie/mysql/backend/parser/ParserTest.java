@@ -116,4 +116,12 @@ public class ParserTest {
         System.out.println(gson.toJson(select2));
         System.out.println("======================");
     }
+
+    @Test
+    public void testBackup() throws Exception {
+        String stat = "backup '/tmp/mydb_backup'";
+        Object res = Parser.Parse(stat.getBytes());
+        Backup backup = (Backup)res;
+        assert "/tmp/mydb_backup".equals(backup.path);
+    }
 }
@@ -2,6 +2,8 @@ package top.wanjie.mysql.backend.server;
 
 import org.junit.Test;
 import top.wanjie.mysql.backend.dm.DataManager;
+import top.wanjie.mysql.backend.dm.logger.Logger;
+import top.wanjie.mysql.backend.dm.pageCache.PageCache;
 import top.wanjie.mysql.backend.tbm.TableManager;
 import top.wanjie.mysql.backend.tm.TransactionManager;
 import top.wanjie.mysql.backend.vm.VersionManager;
@@ -39,7 +41,7 @@ public class ExecutorTest {
         testInsert(exe, 10000, 1);
         new File(path + ".db").delete();
         new File(path + ".bt").delete();
-        new File(path + ".log").delete();
+        Logger.remove(path);
         new File(path + ".xid").delete();
     }
 
@@ -71,7 +73,124 @@ public class ExecutorTest {
         testMultiInsert(10000, 4);
         new File(path + ".db").delete();
         new File(path + ".bt").delete();
-        new File(path + ".log").delete();
+        Logger.remove(path);
+        new File(path + ".xid").delete();
+    }
+
+    // 反复更新同一批数据，旧版本被回收之后 .db 文件的大小不再增长
+    @Test
+    public void testUpdateSpaceReuse() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        Executor exe = new Executor(tbm);
+        exe.execute("create table bench id int32, value int32 (index id)".getBytes());
+        int rows = 200;
+        for(int i = 1; i <= rows; i ++) {
+            exe.execute(("insert into bench values " + i + " 0").getBytes());
+        }
+
+        File db = new File(path + ".db");
+        long[] sizes = new long[30];
+        for(int round = 0; round < sizes.length; round ++) {
+            for(int i = 1; i <= rows; i ++) {
+                exe.execute(("update bench set value = " + round + " where id = " + i).getBytes());
+            }
+            sizes[round] = db.length();
+        }
+        // 每轮产生 200 个旧版本，不回收时文件每轮都会增长；回收在后台进行，允许落后两页
+        assert sizes[sizes.length - 1] <= sizes[9] + 2 * PageCache.PAGE_SIZE;
+        String all = new String(exe.execute("select * from bench".getBytes()));
+        assert all.split("\n").length == rows;
+        tbm.close();
+        dm.close();
+        tm.close();
+
+        db.delete();
+        new File(path + ".bt").delete();
+        Logger.remove(path);
+        new File(path + ".xid").delete();
+    }
+
+    // 回收时冻结旧版本中的 XID，TM 只保留冻结点之后的状态，.xid 文件不随事务数增长；
+    // 冻结之后的数据和回滚留下的版本在重新打开之后仍然正确
+    @Test
+    public void testFreezeXids() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        Executor exe = new Executor(tbm);
+        exe.execute("create table bench id int32, value int32 (index id)".getBytes());
+        int rows = 100, rounds = 100;
+        for(int i = 1; i <= rows; i ++) {
+            exe.execute(("insert into bench values " + i + " 0").getBytes());
+        }
+        File xid = new File(path + ".xid");
+        for(int round = 1; round <= rounds; round ++) {
+            for(int i = 1; i <= rows; i ++) {
+                exe.execute(("update bench set value = " + round + " where id = " + i).getBytes());
+            }
+            exe.execute("begin".getBytes());
+            exe.execute(("update bench set value = 99999 where id = " + round).getBytes());
+            exe.execute("abort".getBytes());
+        }
+        // 每个事务占一个字节，不冻结时超过一万字节；冻结之后只剩预分配的一块和上次回收之后的事务
+        assert xid.length() < 2 * 4096;
+        // 冻结之后 xmin 为 SUPER_XID，可重复读的事务同样可见
+        exe.execute("begin isolation level repeatable read".getBytes());
+        assert new String(exe.execute("select * from bench".getBytes())).split("\n").length == rows;
+        exe.execute("commit".getBytes());
+        tbm.close();
+        dm.close();
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, mem, tm);
+        vm = VersionManager.newVersionManager(tm, dm);
+        tbm = TableManager.open(path, vm, dm);
+        exe = new Executor(tbm);
+        String[] all = new String(exe.execute("select * from bench".getBytes())).split("\n");
+        assert all.length == rows;
+        for (String row : all) {
+            assert row.endsWith(", " + rounds + "]");
+        }
+        tbm.close();
+        dm.close();
+        tm.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        Logger.remove(path);
+        xid.delete();
+    }
+
+    // 可重复读的事务看不到开始时仍活跃的事务和之后开始的事务，读已提交的事务看得到
+    @Test
+    public void testRepeatableRead() throws Exception {
+        Executor a = testCreate();
+        Executor b = new Executor(a.tbm);
+        Executor c = new Executor(a.tbm);
+        a.execute("insert into test_table values 1".getBytes());
+        c.execute("begin".getBytes());
+        c.execute("insert into test_table values 2".getBytes());
+        b.execute("begin isolation level repeatable read".getBytes());
+        a.execute("insert into test_table values 3".getBytes());
+        c.execute("commit".getBytes());
+        assert new String(b.execute("select * from test_table".getBytes())).equals("[1]\n");
+        a.execute("begin".getBytes());
+        assert new String(a.execute("select * from test_table".getBytes())).split("\n").length == 3;
+        a.execute("commit".getBytes());
+        assert new String(b.execute("select * from test_table".getBytes())).equals("[1]\n");
+        b.execute("commit".getBytes());
+        b.execute("begin isolation level repeatable read".getBytes());
+        assert new String(b.execute("select * from test_table".getBytes())).split("\n").length == 3;
+        b.execute("commit".getBytes());
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        Logger.remove(path);
         new File(path + ".xid").delete();
     }
 }
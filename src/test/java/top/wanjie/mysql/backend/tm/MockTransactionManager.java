@@ -28,6 +28,18 @@ public class MockTransactionManager implements TransactionManager {
         return false;
     }
 
+    @Override
+    public void backup(String path) {}
+
+    @Override
+    public void extend(long xid) {}
+
+    @Override
+    public void sync() {}
+
+    @Override
+    public void freeze(long xid) {}
+
     @Override
     public void close() {}
     
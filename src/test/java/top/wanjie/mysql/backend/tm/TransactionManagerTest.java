@@ -3,11 +3,17 @@ package top.wanjie.mysql.backend.tm;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -40,6 +46,193 @@ public class TransactionManagerTest {
         assert new File("/tmp/tranmger_test.xid").delete();
     }
 
+    // 状态在内存中按块保存，重新打开时从文件读回，跨越块边界的 XID 也不会错位
+    @Test
+    public void testReopen() {
+        String path = "/tmp/tranmger_reopen_test";
+        TransactionManager tm = TransactionManager.create(path);
+        tm.extend(70000);
+        Map<Long, Byte> states = new HashMap<>();
+        for(int i = 0; i < 20; i ++) {
+            long xid = tm.begin();
+            int status = i % 3;
+            if(status == 1) tm.commit(xid);
+            if(status == 2) tm.abort(xid);
+            states.put(xid, (byte)status);
+        }
+        tm.commit(65536);
+        tm.commit(65535);
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        assert tm.isAborted(1) && tm.isAborted(65534) && tm.isAborted(65537) && tm.isAborted(70000);
+        assert tm.isCommitted(65535) && tm.isCommitted(65536);
+        for (Map.Entry<Long, Byte> entry : states.entrySet()) {
+            long xid = entry.getKey();
+            assert xid > 70000;
+            switch (entry.getValue()) {
+                case 0: assert tm.isActive(xid); break;
+                case 1: assert tm.isCommitted(xid); break;
+                case 2: assert tm.isAborted(xid); break;
+            }
+        }
+        // 上次预分配的块中没有用到的 XID 不再使用
+        assert tm.begin() > 70020;
+        tm.close();
+        assert new File(path + ".xid").delete();
+    }
+
+    // 冻结点之前的事务一律视为已提交，文件只保留冻结点之后的状态，重新打开之后不变
+    @Test
+    public void testFreeze() throws Exception {
+        String path = "/tmp/tranmger_freeze_test";
+        TransactionManager tm = TransactionManager.create(path);
+        tm.extend(70000);
+        Map<Long, Byte> states = new HashMap<>();
+        for(int i = 0; i < 20; i ++) {
+            long xid = tm.begin();
+            int status = i % 3;
+            if(status == 1) tm.commit(xid);
+            if(status == 2) tm.abort(xid);
+            states.put(xid, (byte)status);
+        }
+        long frozen = 70005;
+        tm.freeze(frozen);
+        // 不会倒退，冻结点之前的状态也不再改写
+        tm.freeze(10);
+        tm.abort(5);
+        for(int round = 0; round < 2; round ++) {
+            assert tm.isCommitted(1) && tm.isCommitted(65536) && tm.isCommitted(frozen - 1);
+            assert !tm.isAborted(5) && !tm.isActive(70000);
+            for (Map.Entry<Long, Byte> entry : states.entrySet()) {
+                long xid = entry.getKey();
+                switch (xid < frozen ? 1 : entry.getValue()) {
+                    case 0: assert tm.isActive(xid); break;
+                    case 1: assert tm.isCommitted(xid); break;
+                    case 2: assert tm.isAborted(xid); break;
+                }
+            }
+            tm.close();
+
+            long counter;
+            File f = new File(path + ".xid");
+            try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+                assert raf.readLong() == TransactionManagerImpl.XID_MAGIC;
+                counter = raf.readLong();
+                assert raf.readLong() == frozen;
+            }
+            assert f.length() == TransactionManagerImpl.XID_HEADER_LENGTH + counter - frozen + 1;
+            tm = TransactionManager.open(path);
+        }
+        assert tm.begin() > 70020;
+        tm.close();
+        assert new File(path + ".xid").delete();
+    }
+
+    // 冻结点之前的块不分配：冻结点很大时打开只为冻结点之后的事务分配内存
+    @Test
+    public void testFreezeLargeXid() throws Exception {
+        long frozen = (1L << 30) + 100;
+        XidStates states = new XidStates();
+        states.freeze(frozen);
+        states.set(frozen, (byte)1);
+        states.set(frozen + 70000, (byte)2);
+        assert states.chunkCount() == 2;
+        assert states.get(frozen - 1) == XidStates.FROZEN && states.get(1) == XidStates.FROZEN;
+        assert states.get(frozen) == 1 && states.get(frozen + 1) == 0 && states.get(frozen + 70000) == 2;
+        states.freeze(frozen + 70000);
+        assert states.chunkCount() == 1;
+        assert states.get(frozen) == XidStates.FROZEN && states.get(frozen + 70000) == 2;
+
+        String path = "/tmp/tranmger_large_freeze_test";
+        try (RandomAccessFile raf = new RandomAccessFile(path + ".xid", "rw")) {
+            raf.setLength(0);
+            raf.writeLong(TransactionManagerImpl.XID_MAGIC);
+            raf.writeLong(frozen + 2);
+            raf.writeLong(frozen);
+            raf.write(new byte[]{1, 2, 0});
+        }
+        TransactionManager tm = TransactionManager.open(path);
+        assert tm.isCommitted(1) && tm.isCommitted(frozen - 1);
+        assert tm.isCommitted(frozen) && tm.isAborted(frozen + 1) && tm.isActive(frozen + 2);
+        tm.close();
+        assert new File(path + ".xid").delete();
+    }
+
+    // 没有 Magic 的旧格式文件打开时改写成新格式，状态不变
+    @Test
+    public void testLegacyFile() throws Exception {
+        String path = "/tmp/tranmger_legacy_test";
+        try (RandomAccessFile raf = new RandomAccessFile(path + ".xid", "rw")) {
+            raf.writeLong(3);
+            raf.write(new byte[]{1, 2, 0});
+        }
+        TransactionManager tm = TransactionManager.open(path);
+        assert tm.isCommitted(1) && tm.isAborted(2) && tm.isActive(3);
+        assert tm.begin() == 4;
+        tm.close();
+        try (RandomAccessFile raf = new RandomAccessFile(path + ".xid", "r")) {
+            assert raf.readLong() == TransactionManagerImpl.XID_MAGIC;
+        }
+        tm = TransactionManager.open(path);
+        assert tm.isCommitted(1) && tm.isAborted(2) && tm.isActive(3);
+        tm.close();
+        assert new File(path + ".xid").delete();
+    }
+
+    // 64 个线程同时开始、结束事务并查询任意事务的状态，与每个线程自己记录的结果对照；
+    // 结束的事务状态不会再变，查询到的必须与记录一致，重新打开之后文件中的状态也一致
+    @Test
+    public void testConcurrentStress() throws Exception {
+        String path = "/tmp/tranmger_stress_test";
+        TransactionManager tm0 = TransactionManager.create(path);
+        Map<Long, Byte> oracle = new ConcurrentHashMap<>();
+        List<Long> begun = Collections.synchronizedList(new ArrayList<>());
+        int threads = 64, perThread = 2000;
+        AtomicInteger errors = new AtomicInteger(0);
+        CountDownLatch done = new CountDownLatch(threads);
+        for(int t = 0; t < threads; t ++) {
+            new Thread(() -> {
+                Random r = new Random();
+                try {
+                    for(int i = 0; i < perThread; i ++) {
+                        long xid = tm0.begin();
+                        begun.add(xid);
+                        if(!tm0.isActive(xid)) errors.incrementAndGet();
+                        byte status = (byte)(r.nextInt(3));
+                        if(status == 1) tm0.commit(xid);
+                        if(status == 2) tm0.abort(xid);
+                        oracle.put(xid, status);
+                        for(int k = 0; k < 4; k ++) {
+                            long other = begun.get(r.nextInt(begun.size()));
+                            Byte expected = oracle.get(other);
+                            if(expected == null || expected == 0) continue;
+                            if(expected == 1 ? !tm0.isCommitted(other) : !tm0.isAborted(other)) errors.incrementAndGet();
+                        }
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        assert errors.get() == 0;
+        assert oracle.size() == threads * perThread;
+        tm0.close();
+
+        TransactionManager tm = TransactionManager.open(path);
+        for (Map.Entry<Long, Byte> entry : oracle.entrySet()) {
+            long xid = entry.getKey();
+            switch (entry.getValue()) {
+                case 0: assert tm.isActive(xid); break;
+                case 1: assert tm.isCommitted(xid); break;
+                case 2: assert tm.isAborted(xid); break;
+            }
+        }
+        tm.close();
+        assert new File(path + ".xid").delete();
+    }
+
     private void worker() {
         boolean inTrans = false;
         long transXID = 0;